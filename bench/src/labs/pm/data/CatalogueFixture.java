@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.ResourceBundle;
+import java.util.stream.Stream;
+
+/**
+ * {@code CatalogueFixture} generates synthetic catalogues for the benchmarks
+ * <br>
+ * Each catalogue is written once, in the same file formats as the data and
+ * report folders of the application, under {@code pm-bench} in the temporary
+ * directory, and reused by later runs with the same size
+ *
+ * @author richa
+ */
+final class CatalogueFixture {
+
+    private static final String[] NAMES = {"Tea", "Coffee", "Cake", "Cookie", "Hot Chocolate", "Chocolate"};
+    private static final String[] COMMENTS = {"Nice hot cup of tea", "Rather weak tea", "Fine tea",
+        "Good coffee, too strong though", "Very nice cake", "Just add some milk", "Not too sweet"};
+
+    private final Path root;
+    private final int products;
+
+    private CatalogueFixture(Path root, int products) {
+        this.root = root;
+        this.products = products;
+    }
+
+    /**
+     * Finds or writes a catalogue
+     *
+     * @param products the number of products, with ids from 1
+     * @param reviews the number of reviews of each product
+     * @return the catalogue
+     * @throws IOException if the catalogue cannot be written
+     */
+    static CatalogueFixture of(int products, int reviews) throws IOException {
+        Path root = Path.of(System.getProperty("java.io.tmpdir"), "pm-bench", products + "x" + reviews);
+        Path complete = root.resolve("complete");
+        if (Files.notExists(complete)) {
+            write(root, products, reviews);
+            Files.createFile(complete);
+        }
+        return new CatalogueFixture(root, products);
+    }
+
+    int getProducts() {
+        return products;
+    }
+
+    /**
+     * Creates a product manager loaded from this catalogue, with an empty
+     * temp folder, the review journal disabled and no JMX registration
+     *
+     * @param store the catalogue store, {@code objects} or {@code columns}
+     * @return the product manager, to be shut down after use
+     * @throws IOException if the temp folder cannot be emptied
+     */
+    ProductManager newProductManager(String store) throws IOException {
+        return newProductManager(store, 1);
+    }
+
+    /**
+     * Creates a product manager loaded from this catalogue, split into
+     * shards
+     *
+     * @param store the catalogue store, {@code objects} or {@code columns}
+     * @param shards the number of shards
+     * @return the product manager, to be shut down after use
+     * @throws IOException if the temp folder cannot be emptied
+     */
+    ProductManager newProductManager(String store, int shards) throws IOException {
+        Path temp = root.resolve("temp");
+        if (Files.exists(temp)) {
+            try (Stream<Path> files = Files.list(temp)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Map<String, String> settings = new HashMap<>();
+        settings.put("data.folder", root.resolve("data").toString());
+        settings.put("reports.folder", root.resolve("report").toString());
+        settings.put("temp.folder", temp.toString());
+        settings.put("journal.file", "");
+        settings.put("jmx.name", "");
+        settings.put("catalogue.store", store);
+        settings.put("catalogue.shards", Integer.toString(shards));
+        return new ProductManager(settings);
+    }
+
+    /**
+     * Sends the console output of the product listings nowhere, so that the
+     * benchmarks measure the listing rather than the terminal
+     *
+     * @return the console to put back afterwards
+     */
+    static PrintStream muteConsole() {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return console;
+    }
+
+    private static void write(Path root, int products, int reviews) throws IOException {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        Path data = Files.createDirectories(root.resolve("data"));
+        Path report = Files.createDirectories(root.resolve("report"));
+        Random random = new Random(products);
+        LocalDate today = LocalDate.now();
+        for (int id = 1; id <= products; id++) {
+            boolean food = random.nextBoolean();
+            BigDecimal price = BigDecimal.valueOf(100 + random.nextInt(1900), 2);
+            String product = (food ? "F," : "D,") + id + "," + NAMES[random.nextInt(NAMES.length)]
+                    + "," + price + ",0," + today.plusDays(random.nextInt(3) - 1);
+            Files.writeString(data.resolve(MessageFormat.format(config.getString("product.data.file"), id)),
+                    product, StandardCharsets.UTF_8);
+            try (BufferedWriter out = Files.newBufferedWriter(
+                    report.resolve(MessageFormat.format(config.getString("reviews.data.file"), id)),
+                    StandardCharsets.UTF_8)) {
+                for (int i = 0; i < reviews; i++) {
+                    out.write((1 + random.nextInt(5)) + "," + COMMENTS[random.nextInt(COMMENTS.length)]);
+                    out.newLine();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code CatalogueLoadBenchmark} measures loading the catalogue from its data
+ * files and dumping and restoring it through the temp folder
+ * <br>
+ * Each of these replaces the whole catalogue, so they are timed one call per
+ * iteration rather than in a loop
+ *
+ * @author richa
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatalogueLoadBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Catalogue {
+
+        @Param({"10", "1000", "100000", "1000000"})
+        public int products;
+
+        @Param({"5"})
+        public int reviews;
+
+        @Param({"objects", "columns"})
+        public String store;
+
+        CatalogueFixture fixture;
+        ProductManager pm;
+        private PrintStream console;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            console = CatalogueFixture.muteConsole();
+            fixture = CatalogueFixture.of(products, reviews);
+            pm = fixture.newProductManager(store);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pm.shutdown();
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * A catalogue that is dumped before each iteration, ready to be restored
+     */
+    @State(Scope.Benchmark)
+    public static class Dumped extends Catalogue {
+
+        @Setup(Level.Iteration)
+        public void dump() {
+            pm.dumpData();
+        }
+    }
+
+    /**
+     * A catalogue that is restored after each iteration, ready to be dumped
+     * again
+     */
+    @State(Scope.Benchmark)
+    public static class Restored extends Catalogue {
+
+        @TearDown(Level.Iteration)
+        public void restore() {
+            pm.restoreData();
+        }
+    }
+
+    @Benchmark
+    public ProductManager loadAllData(Catalogue catalogue) throws IOException {
+        ProductManager pm = catalogue.fixture.newProductManager(catalogue.store);
+        pm.shutdown();
+        return pm;
+    }
+
+    @Benchmark
+    public void dumpData(Restored catalogue) {
+        catalogue.pm.dumpData();
+    }
+
+    @Benchmark
+    public void restoreData(Dumped catalogue) {
+        catalogue.pm.restoreData();
+    }
+}
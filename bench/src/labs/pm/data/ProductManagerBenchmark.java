@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code ProductManagerBenchmark} measures the operations clients call on a
+ * loaded catalogue, each alone and with several threads contending for it
+ * <br>
+ * Product ids are drawn uniformly from the whole catalogue. Reviews written
+ * by {@link #reviewProduct()} stay in the catalogue for the rest of the trial,
+ * as they would in the application. {@link #reviewProducts()} reports the
+ * time per review of a batch of 1000
+ *
+ * @author richa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProductManagerBenchmark {
+
+    private static final int CONTENDED = 4;
+    private static final int BATCH = 1000;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int products;
+
+    @Param({"5"})
+    public int reviews;
+
+    @Param({"objects", "columns"})
+    public String store;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    private ProductManager pm;
+    private PrintStream console;
+    private final Comparator<Product> byRating = (p1, p2) -> p2.getRating().ordinal() - p1.getRating().ordinal();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        console = CatalogueFixture.muteConsole();
+        pm = CatalogueFixture.of(products, reviews).newProductManager(store, shards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pm.shutdown();
+        System.setOut(console);
+    }
+
+    private int randomId() {
+        return 1 + ThreadLocalRandom.current().nextInt(products);
+    }
+
+    @Benchmark
+    public Product findProduct() throws ProductManagerException {
+        return pm.findProduct(randomId());
+    }
+
+    @Benchmark
+    @Threads(CONTENDED)
+    public Product findProductContended() throws ProductManagerException {
+        return pm.findProduct(randomId());
+    }
+
+    @Benchmark
+    public Product reviewProduct() {
+        return pm.reviewProduct(randomId(), Rating.FOUR_STAR, "Benchmark review");
+    }
+
+    @Benchmark
+    @Threads(CONTENDED)
+    public Product reviewProductContended() {
+        return pm.reviewProduct(randomId(), Rating.FOUR_STAR, "Benchmark review");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<BatchResult> reviewProducts() {
+        List<ProductReview> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(new ProductReview(randomId(), Rating.FOUR_STAR, "Benchmark review"));
+        }
+        return pm.reviewProducts(batch);
+    }
+
+    @Benchmark
+    public void printProducts() {
+        pm.printProducts(product -> product.getPrice().doubleValue() < 10, byRating, "en-GB");
+    }
+
+    @Benchmark
+    public List<Product> findProductsTopRated() {
+        return pm.findProducts(ProductQuery.all()
+                .priceBetween(BigDecimal.ONE, BigDecimal.TEN)
+                .orderBy(ProductQuery.Order.RATING).descending()
+                .limit(10));
+    }
+
+    @Benchmark
+    public Map<String, String> getDiscounts() {
+        return pm.getDiscounts("en-GB");
+    }
+
+    @Benchmark
+    @Threads(CONTENDED)
+    public Map<String, String> getDiscountsContended() {
+        return pm.getDiscounts("en-GB");
+    }
+
+    @Benchmark
+    public void printProductReport() {
+        pm.printProductReport(randomId(), "en-GB", "bench");
+    }
+
+    @Benchmark
+    @Threads(CONTENDED)
+    public void printProductReportContended() {
+        pm.printProductReport(randomId(), "en-GB", "bench");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@code KeyDistribution} picks the product ids that simulated clients work
+ * on, from a range of consecutive ids
+ * <br>
+ * With a uniform distribution every product is equally likely. With a Zipfian
+ * distribution the product of rank k is picked with a probability
+ * proportional to 1 / k^s, the lowest ids being the hottest, which is how a
+ * few popular products concentrate the contention in production
+ *
+ * @author richa
+ */
+public abstract class KeyDistribution {
+
+    private final int firstId;
+    private final int products;
+
+    private KeyDistribution(int firstId, int products) {
+        if (products <= 0) {
+            throw new IllegalArgumentException("The key range must not be empty");
+        }
+        this.firstId = firstId;
+        this.products = products;
+    }
+
+    public static KeyDistribution uniform(int firstId, int lastId) {
+        return new KeyDistribution(firstId, lastId - firstId + 1) {
+            @Override
+            int rank(ThreadLocalRandom random) {
+                return random.nextInt(getProducts());
+            }
+
+            @Override
+            public String toString() {
+                return "uniform keys over " + firstId + "-" + lastId;
+            }
+        };
+    }
+
+    /**
+     * Creates a Zipfian distribution
+     *
+     * @param firstId the first and hottest product id
+     * @param lastId the last product id
+     * @param exponent the skew, 0 is uniform and values around 1 are typical
+     * @return the distribution
+     */
+    public static KeyDistribution zipfian(int firstId, int lastId, double exponent) {
+        int products = lastId - firstId + 1;
+        double[] cumulative = new double[Math.max(products, 0)];
+        double sum = 0;
+        for (int rank = 0; rank < cumulative.length; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        double norm = sum;
+        return new KeyDistribution(firstId, products) {
+            @Override
+            int rank(ThreadLocalRandom random) {
+                // the first rank whose cumulative weight reaches the random point
+                double point = random.nextDouble() * norm;
+                int low = 0;
+                int high = cumulative.length - 1;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (cumulative[middle] < point) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return low;
+            }
+
+            @Override
+            public String toString() {
+                return "zipfian(" + exponent + ") keys over " + firstId + "-" + lastId;
+            }
+        };
+    }
+
+    public int nextId() {
+        return firstId + rank(ThreadLocalRandom.current());
+    }
+
+    int getProducts() {
+        return products;
+    }
+
+    abstract int rank(ThreadLocalRandom random);
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.data.LatencyHistogram;
+import labs.pm.data.ProductManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rating;
+import labs.pm.data.VirtualThreads;
+
+/**
+ * {@code LoadGenerator} runs the simulated clients of {@link Shop} against a
+ * product manager for a given time and measures the latency and throughput of
+ * each operation
+ * <br>
+ * In a closed loop each client sends its next request when the last one
+ * finished. In an open loop requests are sent at a fixed rate, and their
+ * latency is measured from the time they were due, so that the time spent
+ * waiting behind slow requests is not hidden
+ * <br>
+ * Usage: {@code java labs.pm.app.Shop clients=50 threads=pool pool.size=8
+ * rate=2000 mix=find:70,review:20,report:5,discounts:5 keys=zipf:0.99
+ * ids=101-110 duration=30}, see {@link LoadProfile} for the settings
+ *
+ * @author richa
+ */
+public final class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    public enum Operation {
+        FIND {
+            @Override
+            void run(ProductManager pm, int id, String languageTag, String client) throws ProductManagerException {
+                pm.findProduct(id);
+            }
+        },
+        REVIEW {
+            @Override
+            void run(ProductManager pm, int id, String languageTag, String client) throws ProductManagerException {
+                if (pm.reviewProduct(id, Rating.THREE_STAR, "Yet another review") == null) {
+                    throw new ProductManagerException("Product " + id + " not reviewed");
+                }
+            }
+        },
+        DISCOUNTS {
+            @Override
+            void run(ProductManager pm, int id, String languageTag, String client) {
+                pm.getDiscounts(languageTag);
+            }
+        },
+        REPORT {
+            @Override
+            void run(ProductManager pm, int id, String languageTag, String client) {
+                pm.submitProductReport(id, languageTag, client).join();
+            }
+        };
+
+        abstract void run(ProductManager pm, int id, String languageTag, String client) throws ProductManagerException;
+    }
+
+    private final ProductManager pm;
+    private final LoadProfile profile;
+    private final String[] languageTags;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private long measureStart;
+    private long deadline;
+
+    public LoadGenerator(ProductManager pm, LoadProfile profile) {
+        this.pm = pm;
+        this.profile = profile;
+        this.languageTags = ProductManager.getSupportedLocales().toArray(new String[0]);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) {
+        LoadProfile profile;
+        try {
+            profile = LoadProfile.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Settings: clients, threads=pool|client|virtual, pool.size, rate, mix, ids, keys=uniform|zipf:<s>, duration, warmup");
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(ProductManager.getInstance(), profile);
+        try {
+            generator.run();
+            generator.printResults(System.out);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.SEVERE, "Load generation interrupted", ex);
+        }
+    }
+
+    /**
+     * Runs the clients for the warmup and the duration of the profile, and
+     * waits for the requests still in progress
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+        measureStart = start + profile.getWarmup().toNanos();
+        deadline = measureStart + profile.getDuration().toNanos();
+        try {
+            if (profile.getRate() > 0) {
+                runOpenLoop(executor, start);
+            } else {
+                runClosedLoop(executor);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.log(Level.WARNING, "Requests still running after the load finished");
+            executor.shutdownNow();
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        switch (profile.getThreadModel()) {
+            case POOL:
+                return Executors.newFixedThreadPool(profile.getPoolSize());
+            case VIRTUAL:
+                if (VirtualThreads.isSupported()) {
+                    return VirtualThreads.newThreadPerTaskExecutor();
+                }
+                logger.log(Level.WARNING, "Virtual threads are not supported, using a thread per client");
+                return Executors.newFixedThreadPool(profile.getClients());
+            default:
+                return Executors.newFixedThreadPool(profile.getClients());
+        }
+    }
+
+    private void runClosedLoop(ExecutorService executor) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(profile.getClients());
+        for (int i = 1; i <= profile.getClients(); i++) {
+            String client = "Client " + i;
+            // each request queues the next one, so clients sharing a pool take turns
+            Runnable request = new Runnable() {
+                @Override
+                public void run() {
+                    long now = System.nanoTime();
+                    if (now - deadline >= 0) {
+                        finished.countDown();
+                    } else {
+                        request(client, now);
+                        executor.execute(this);
+                    }
+                }
+            };
+            executor.execute(request);
+        }
+        finished.await();
+    }
+
+    private void runOpenLoop(ExecutorService executor, long start) {
+        // each request is due at its own offset from the start, so rounding does not add up over the run
+        double interval = TimeUnit.SECONDS.toNanos(1) / profile.getRate();
+        long due = start;
+        for (long i = 0; due - deadline < 0 && !Thread.currentThread().isInterrupted(); i++) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String client = "Client " + (i % profile.getClients() + 1);
+            long scheduled = due;
+            executor.execute(() -> request(client, scheduled));
+            due = start + (long) ((i + 1) * interval);
+        }
+    }
+
+    private void request(String client, long start) {
+        Operation operation = profile.nextOperation();
+        int id = profile.getKeys().nextId();
+        String languageTag = languageTags[ThreadLocalRandom.current().nextInt(languageTags.length)];
+        boolean failed = false;
+        try {
+            operation.run(pm, id, languageTag, client);
+        } catch (Exception ex) {
+            failed = true;
+            logger.log(Level.FINE, operation + " of product " + id + " failed " + ex.getMessage());
+        }
+        long end = System.nanoTime();
+        if (start - measureStart >= 0) {
+            latencies.get(operation).record(end - start);
+            if (failed) {
+                errors.get(operation).increment();
+            }
+        }
+    }
+
+    public Map<Operation, LatencyHistogram> getLatencies() {
+        return latencies;
+    }
+
+    public long getErrors(Operation operation) {
+        return errors.get(operation).sum();
+    }
+
+    /**
+     * Prints the requests, errors, throughput and latency percentiles of each
+     * operation of the mix
+     *
+     * @param out where to print
+     */
+    public void printResults(PrintStream out) {
+        double seconds = profile.getDuration().toNanos() / 1e9;
+        out.println("Load: " + profile);
+        out.println(String.format(Locale.ROOT, "%-10s %10s %8s %10s %10s %10s %10s %10s",
+                "operation", "requests", "errors", "req/s", "p50 us", "p99 us", "p99.9 us", "max us"));
+        long requests = 0;
+        long failures = 0;
+        for (Operation operation : profile.getMix().keySet().stream().sorted().toArray(Operation[]::new)) {
+            LatencyHistogram histogram = latencies.get(operation);
+            long count = histogram.getCount();
+            long failed = errors.get(operation).sum();
+            requests += count;
+            failures += failed;
+            out.println(String.format(Locale.ROOT, "%-10s %10d %8d %10.1f %10d %10d %10d %10d",
+                    operation.name().toLowerCase(Locale.ROOT), count, failed, count / seconds,
+                    micros(histogram.getPercentile(50)), micros(histogram.getPercentile(99)),
+                    micros(histogram.getPercentile(99.9)), micros(histogram.getMax())));
+        }
+        out.println(String.format(Locale.ROOT, "%-10s %10d %8d %10.1f",
+                "total", requests, failures, requests / seconds));
+        out.println(pm.getReportCacheStatistics());
+        out.println(pm.getMetrics());
+    }
+
+    private static long micros(Duration latency) {
+        return latency.toNanos() / 1000;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import labs.pm.app.LoadGenerator.Operation;
+
+/**
+ * {@code LoadProfile} describes the load simulated by a
+ * {@link LoadGenerator}, read from {@code key=value} arguments
+ * <ul>
+ * <li>{@code clients} the number of simulated clients, 5 by default</li>
+ * <li>{@code threads} {@code pool} to share a fixed pool of
+ * {@code pool.size} threads between the clients, as {@link Shop} did,
+ * {@code client} for a thread per client, or {@code virtual} for a virtual
+ * thread per request where the runtime has virtual threads</li>
+ * <li>{@code rate} requests per second for an open loop, where requests
+ * arrive on schedule whether or not earlier ones finished, or 0 for a closed
+ * loop where each client waits for its last request</li>
+ * <li>{@code mix} operation weights such as
+ * {@code find:70,review:20,report:5,discounts:5}</li>
+ * <li>{@code ids} the product id range such as {@code 101-110}</li>
+ * <li>{@code keys} {@code uniform} or {@code zipf:<exponent>}</li>
+ * <li>{@code duration} and {@code warmup} in seconds, latencies of the warmup
+ * are not recorded</li>
+ * </ul>
+ *
+ * @author richa
+ */
+public final class LoadProfile {
+
+    public enum ThreadModel {
+        POOL, CLIENT, VIRTUAL
+    }
+
+    private int clients = 5;
+    private ThreadModel threadModel = ThreadModel.POOL;
+    private int poolSize = 3;
+    private double rate;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private KeyDistribution keys = KeyDistribution.uniform(101, 110);
+    private Duration duration = Duration.ofSeconds(10);
+    private Duration warmup = Duration.ofSeconds(2);
+    private int[] cumulativeWeights;
+    private Operation[] operations;
+
+    private LoadProfile() {
+    }
+
+    /**
+     * Reads a profile, settings that are not given keep their defaults
+     *
+     * @param args {@code key=value} settings
+     * @return the profile
+     * @throws IllegalArgumentException if a setting is unknown or invalid
+     */
+    public static LoadProfile parse(String... args) {
+        LoadProfile profile = new LoadProfile();
+        String ids = "101-110";
+        String keys = "uniform";
+        String mix = "discounts:1,review:1,report:1";
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected key=value but found " + arg);
+            }
+            String key = arg.substring(0, separator).trim();
+            String value = arg.substring(separator + 1).trim();
+            try {
+                switch (key) {
+                    case "clients":
+                        profile.clients = Integer.parseInt(value);
+                        break;
+                    case "threads":
+                        profile.threadModel = ThreadModel.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "pool.size":
+                        profile.poolSize = Integer.parseInt(value);
+                        break;
+                    case "rate":
+                        profile.rate = Double.parseDouble(value);
+                        break;
+                    case "mix":
+                        mix = value;
+                        break;
+                    case "ids":
+                        ids = value;
+                        break;
+                    case "keys":
+                        keys = value;
+                        break;
+                    case "duration":
+                        profile.duration = Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+                        break;
+                    case "warmup":
+                        profile.warmup = Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown load setting " + key);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid value of " + key + ": " + value, ex);
+            }
+        }
+        if (profile.clients <= 0 || profile.poolSize <= 0 || profile.rate < 0) {
+            throw new IllegalArgumentException("clients and pool.size must be positive and rate not negative");
+        }
+        profile.parseIds(ids, keys);
+        profile.parseMix(mix);
+        return profile;
+    }
+
+    private void parseIds(String ids, String distribution) {
+        String[] range = ids.split("-");
+        int firstId = Integer.parseInt(range[0].trim());
+        int lastId = (range.length > 1) ? Integer.parseInt(range[1].trim()) : firstId;
+        if (distribution.equals("uniform")) {
+            keys = KeyDistribution.uniform(firstId, lastId);
+        } else if (distribution.startsWith("zipf:")) {
+            double exponent;
+            try {
+                exponent = Double.parseDouble(distribution.substring("zipf:".length()));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid zipf exponent in " + distribution, ex);
+            }
+            keys = KeyDistribution.zipfian(firstId, lastId, exponent);
+        } else {
+            throw new IllegalArgumentException("Unknown key distribution " + distribution);
+        }
+    }
+
+    private void parseMix(String weights) {
+        for (String weight : weights.split(",")) {
+            String[] parts = weight.split(":");
+            Operation operation = Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            mix.put(operation, (parts.length > 1) ? Integer.parseInt(parts[1].trim()) : 1);
+        }
+        mix.values().removeIf(weight -> weight <= 0);
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("The operation mix is empty");
+        }
+        operations = mix.keySet().toArray(new Operation[0]);
+        cumulativeWeights = new int[operations.length];
+        int sum = 0;
+        for (int i = 0; i < operations.length; i++) {
+            sum += mix.get(operations[i]);
+            cumulativeWeights[i] = sum;
+        }
+    }
+
+    /**
+     * Picks the next operation according to the mix
+     *
+     * @return the operation
+     */
+    Operation nextOperation() {
+        int point = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+        while (cumulativeWeights[i] <= point) {
+            i++;
+        }
+        return operations[i];
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public ThreadModel getThreadModel() {
+        return threadModel;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public Map<Operation, Integer> getMix() {
+        return Map.copyOf(mix);
+    }
+
+    public KeyDistribution getKeys() {
+        return keys;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+
+    public Duration getWarmup() {
+        return warmup;
+    }
+
+    @Override
+    public String toString() {
+        return clients + " clients on " + ((threadModel == ThreadModel.POOL)
+                ? "a pool of " + poolSize + " threads"
+                : (threadModel == ThreadModel.VIRTUAL) ? "virtual threads" : "a thread each")
+                + ", " + ((rate > 0) ? "open loop at " + rate + " requests/s" : "closed loop")
+                + ", " + keys + ", mix " + mix.entrySet().stream()
+                        .map(entry -> entry.getKey().name().toLowerCase(Locale.ROOT) + ":" + entry.getValue())
+                        .collect(Collectors.joining(","))
+                + ", " + duration.toMillis() / 1000.0 + " s after " + warmup.toMillis() / 1000.0 + " s of warmup";
+    }
+}
@@ -17,11 +17,15 @@
 package labs.pm.app;
 
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -48,11 +52,17 @@ import labs.pm.data.Rating;
 public class Shop {
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, {@code key=value} settings run
+     * the {@link LoadGenerator} instead of the five demo clients
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            LoadGenerator.main(args);
+            return;
+        }
         ProductManager pm = ProductManager.getInstance();
         AtomicInteger clientCount = new AtomicInteger(0);
+        List<CompletableFuture<Path>> reports = new CopyOnWriteArrayList<>();
         Callable<String> client = () -> {
             String clientId = "Client " + clientCount.incrementAndGet();
             String threadName = Thread.currentThread().getName();
@@ -74,8 +84,8 @@ public class Shop {
             log.append((product != null)
                     ? "\nProduct " + productId + " reviewed\n"
                     : "\nProduct " + productId + " not reviewed\n");
-            pm.printProductReport(productId, languageTag, clientId);
-            log.append(clientId + " generated report for " + productId + " product");
+            reports.add(pm.submitProductReport(productId, languageTag, clientId));
+            log.append(clientId + " requested report for " + productId + " product");
             return log.toString();
         };
         List<Callable<String>> clients = Stream.generate(() -> client)
@@ -92,6 +102,13 @@ public class Shop {
                     Logger.getLogger(Shop.class.getName()).log(Level.SEVERE, "Error retrieving client log", ex);
                 }
             });
+            reports.forEach(report -> {
+                try {
+                    System.out.println("Report written to " + report.join());
+                } catch (CompletionException ex) {
+                    Logger.getLogger(Shop.class.getName()).log(Level.SEVERE, "Error generating report", ex.getCause());
+                }
+            });
         } catch (InterruptedException ex) {
             Logger.getLogger(Shop.class.getName()).log(Level.SEVERE, "Error invoking clients ", ex);
         }
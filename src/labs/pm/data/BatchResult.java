@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+/**
+ * {@code BatchResult} is the outcome of one item of a batch operation,
+ * either the product it was applied to or the reason it was rejected
+ *
+ * @author richa
+ */
+public final class BatchResult {
+
+    private final Product product;
+    private final String error;
+
+    private BatchResult(Product product, String error) {
+        this.product = product;
+        this.error = error;
+    }
+
+    static BatchResult applied(Product product) {
+        return new BatchResult(product, null);
+    }
+
+    static BatchResult rejected(String error) {
+        return new BatchResult(null, error);
+    }
+
+    public boolean isApplied() {
+        return error == null;
+    }
+
+    /**
+     * The product the item was applied to, as rated after the whole batch
+     * of reviews of that product
+     *
+     * @return the product or {@code null} if the item was rejected
+     */
+    public Product getProduct() {
+        return product;
+    }
+
+    /**
+     * @return why the item was rejected, or {@code null} if it was applied
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return isApplied() ? "Applied to " + product : "Rejected, " + error;
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code CachedReviewStore} keeps the reviews of the most recently used
+ * products in memory and leaves the reviews of the other products in their
+ * reviews files
+ * <br>
+ * The reviews of a product are read from its file the first time they are
+ * needed, and the least recently used products are evicted once more than
+ * the capacity of reviews is cached. Reviews that changed since they were
+ * read are written back to the file of their product before they are
+ * dropped, and the {@link ReviewIndex} is updated with the ratings and the
+ * journaled reviews the file now holds
+ * <br>
+ * Files are read and written outside the lock of the cache. Reviews are
+ * prefetched before the lock stripe of their product is taken, and installed
+ * only if no one read them or reopened their file in the meantime. Evicted
+ * reviews are written back by a thread of their own, since the reviewers
+ * that evict them hold the lock stripes of the catalogue, and they stay in
+ * memory until they are written back, so they are never read again from an
+ * older file
+ *
+ * @author richa
+ */
+final class CachedReviewStore implements ReviewStore {
+
+    /**
+     * Reads and writes the reviews files of the products
+     */
+    interface ReviewFiles {
+
+        Path file(int id);
+
+        List<Review> read(Path file);
+
+        void write(Path file, List<Review> reviews) throws IOException;
+    }
+
+    private static final Logger logger = Logger.getLogger(CachedReviewStore.class.getName());
+
+    private final ReviewIndex index;
+    private final ReviewFiles files;
+    private final long capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    // one file is written at a time, so an older copy never replaces a newer one
+    private final ReentrantLock fileLock = new ReentrantLock();
+    // writes back the evicted reviews in the order they were evicted, and stops when idle
+    private final ExecutorService writer = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "review-write-back");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final IntObjectMap<Slot> products = new IntObjectMap<>();
+    private final LinkedHashMap<Integer, Slot> cached = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedReviews;
+    private long size;
+    private boolean trackJournal;
+
+    /**
+     * @param index the index of the reviews files
+     * @param files reads and writes the reviews files
+     * @param capacity the number of reviews kept in memory
+     */
+    CachedReviewStore(ReviewIndex index, ReviewFiles files, long capacity) {
+        this.index = index;
+        this.files = files;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reads the ratings of the reviews of a product from the index, or from
+     * its reviews file when the file changed after the index was written,
+     * without keeping the reviews
+     * <br>
+     * Products are rated concurrently while the catalogue is loaded
+     *
+     * @param id the product id
+     * @return the ratings of the reviews of the product
+     */
+    RatingAggregate readRatings(int id) {
+        Path file = files.file(id);
+        ReviewIndex.Entry entry = index.getCurrent(id, file);
+        if (entry == null) {
+            RatingAggregate ratings = RatingAggregate.of(files.read(file));
+            index.update(id, ratings.getSum(), ratings.getCount(), index.getJournaled(id));
+            return ratings;
+        }
+        RatingAggregate ratings = new RatingAggregate();
+        ratings.add(entry.getSum(), entry.getCount());
+        return ratings;
+    }
+
+    /**
+     * Adds a product of the catalogue whose reviews are in its reviews file
+     *
+     * @param id the product id
+     * @param count the number of reviews in the file
+     */
+    void open(int id, int count) {
+        try {
+            lock.lock();
+            Slot slot = slot(id);
+            slot.stored = true;
+            size += count - slot.count;
+            slot.count = count;
+            slot.reads++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts the reviews added from now on as journaled, so that the journal
+     * replay skips them once they are written back to the reviews files
+     */
+    void trackJournal() {
+        try {
+            lock.lock();
+            trackJournal = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(int id, Rating rating, String comments) {
+        List<Snapshot> evicted;
+        try {
+            lock.lock();
+            Slot slot = load(id);
+            slot.reviews.add(new Review(rating, comments));
+            added(slot, 1);
+            evicted = evict();
+        } finally {
+            lock.unlock();
+        }
+        writeBackLater(evicted);
+    }
+
+    @Override
+    public void addAll(int id, List<Review> reviews) {
+        List<Snapshot> evicted;
+        try {
+            lock.lock();
+            Slot slot = load(id);
+            slot.reviews.addAll(reviews);
+            added(slot, reviews.size());
+            evicted = evict();
+        } finally {
+            lock.unlock();
+        }
+        writeBackLater(evicted);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The reviews of a product are only marked as changed if they differ
+     * from the current ones, so a reviews file that is reloaded after it was
+     * written back is not written again
+     */
+    @Override
+    public int replace(int id, List<Review> reviews) {
+        List<Snapshot> evicted;
+        int replaced;
+        try {
+            lock.lock();
+            // the count before the reviews are loaded, in case their file changed
+            replaced = slot(id).count;
+            Slot slot = load(id);
+            if (!sameReviews(slot.reviews, reviews)) {
+                slot.reviews = new ArrayList<>(reviews);
+                size += reviews.size() - slot.count;
+                cachedReviews += reviews.size() - slot.count;
+                slot.count = reviews.size();
+                slot.modifications++;
+            }
+            evicted = evict();
+        } finally {
+            lock.unlock();
+        }
+        writeBackLater(evicted);
+        return replaced;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The reviews file is read without holding the lock of the cache, and
+     * the reviews are only kept if they were not read or their file reopened
+     * meanwhile
+     */
+    @Override
+    public void prefetch(int id) {
+        Slot slot;
+        int reads;
+        try {
+            lock.lock();
+            slot = products.get(id);
+            if (slot == null || slot.reviews != null || !slot.stored) {
+                return;
+            }
+            reads = slot.reads;
+        } finally {
+            lock.unlock();
+        }
+        List<Review> reviews = new ArrayList<>(files.read(files.file(id)));
+        List<Snapshot> evicted;
+        try {
+            lock.lock();
+            if (products.get(id) != slot || slot.reviews != null || slot.reads != reads) {
+                return;
+            }
+            install(slot, reviews);
+            evicted = evict();
+        } finally {
+            lock.unlock();
+        }
+        writeBackLater(evicted);
+    }
+
+    @Override
+    public List<Review> get(int id) {
+        List<Snapshot> evicted;
+        List<Review> reviews;
+        try {
+            lock.lock();
+            reviews = new ArrayList<>(load(id).reviews);
+            evicted = evict();
+        } finally {
+            lock.unlock();
+        }
+        writeBackLater(evicted);
+        return reviews;
+    }
+
+    @Override
+    public long size() {
+        try {
+            lock.lock();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The changed reviews are written back first, so the reviews files keep
+     * every review
+     */
+    @Override
+    public void clear() {
+        flush();
+        try {
+            lock.lock();
+            products.clear();
+            cached.clear();
+            cachedReviews = 0;
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes back the reviews of every product that changed since they were
+     * read, after the evicted reviews still waiting, and rewrites the index
+     *
+     * @return {@code true} if every changed review and the index were
+     * written
+     */
+    boolean flush() {
+        try {
+            writer.submit(() -> {
+            }).get();
+        } catch (ExecutionException ex) {
+            logger.log(Level.SEVERE, "Error writing back evicted reviews " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        List<Snapshot> changed = new ArrayList<>();
+        try {
+            lock.lock();
+            for (Slot slot : cached.values()) {
+                if (slot.isDirty()) {
+                    changed.add(new Snapshot(slot));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        boolean written = writeBack(changed);
+        try {
+            index.rewrite();
+            return written;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error writing review index " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Tells whether the reviews file of a product is still the one last
+     * written back, so that a watcher of the reviews files can skip it
+     *
+     * @param id the product id
+     * @return {@code true} if the file was not changed since it was written
+     * back
+     */
+    boolean isWrittenBack(int id) {
+        Slot slot;
+        try {
+            lock.lock();
+            slot = products.get(id);
+        } finally {
+            lock.unlock();
+        }
+        if (slot == null) {
+            return false;
+        }
+        try {
+            fileLock.lock();
+            return slot.flushedTime != null
+                    && slot.flushedTime.equals(Files.getLastModifiedTime(files.file(id)));
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // the caller holds the lock
+    private Slot slot(int id) {
+        Slot slot = products.get(id);
+        if (slot == null) {
+            slot = new Slot(id, index.getJournaled(id));
+            products.put(id, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Makes sure the reviews of a product are in memory and marks them as
+     * the most recently used
+     * <br>
+     * The caller holds the lock, which is released while the file is read,
+     * and the stripe of the product, which keeps others from loading the
+     * same product in the meantime. The file is only read here when the
+     * reviews were evicted again after they were prefetched
+     */
+    private Slot load(int id) {
+        Slot slot = slot(id);
+        if (slot.reviews == null) {
+            List<Review> reviews;
+            if (slot.stored) {
+                lock.unlock();
+                try {
+                    reviews = new ArrayList<>(files.read(files.file(id)));
+                } finally {
+                    lock.lock();
+                }
+            } else {
+                reviews = new ArrayList<>();
+            }
+            // a prefetch may have installed them meanwhile
+            if (slot.reviews == null) {
+                install(slot, reviews);
+                return slot;
+            }
+        }
+        if (!cached.containsKey(id)) {
+            // evicted and not written back yet
+            cachedReviews += slot.count;
+        }
+        cached.put(id, slot);
+        return slot;
+    }
+
+    // the caller holds the lock
+    private void install(Slot slot, List<Review> reviews) {
+        slot.reviews = reviews;
+        slot.reads++;
+        size += reviews.size() - slot.count;
+        slot.count = reviews.size();
+        cachedReviews += slot.count;
+        cached.put(slot.id, slot);
+    }
+
+    // the caller holds the lock
+    private void added(Slot slot, int count) {
+        slot.count += count;
+        size += count;
+        cachedReviews += count;
+        slot.modifications++;
+        if (trackJournal) {
+            slot.journalRecords += count;
+        }
+    }
+
+    /**
+     * Evicts the least recently used products until the cache is within its
+     * capacity, always keeping the most recently used one
+     * <br>
+     * The caller holds the lock
+     *
+     * @return copies of the evicted reviews to be written back
+     */
+    private List<Snapshot> evict() {
+        List<Snapshot> evicted = new ArrayList<>();
+        Iterator<Slot> slots = cached.values().iterator();
+        while (cachedReviews > capacity && cached.size() > 1) {
+            Slot slot = slots.next();
+            slots.remove();
+            cachedReviews -= slot.count;
+            if (slot.isDirty()) {
+                evicted.add(new Snapshot(slot));
+            } else {
+                slot.reviews = null;
+            }
+        }
+        return evicted;
+    }
+
+    private void writeBackLater(List<Snapshot> evicted) {
+        if (!evicted.isEmpty()) {
+            writer.execute(() -> writeBack(evicted));
+        }
+    }
+
+    /**
+     * Writes evicted or changed reviews to their files, and drops them from
+     * memory unless they were used again meanwhile. Reviews that cannot be
+     * written are cached again, to be written when they are next evicted
+     *
+     * @return {@code true} if all the reviews were written
+     */
+    private boolean writeBack(List<Snapshot> snapshots) {
+        boolean all = true;
+        for (Snapshot snapshot : snapshots) {
+            boolean written = write(snapshot);
+            all &= written;
+            Slot slot = snapshot.slot;
+            try {
+                lock.lock();
+                if (written) {
+                    slot.stored = true;
+                    if (slot.written < snapshot.modifications) {
+                        slot.written = snapshot.modifications;
+                    }
+                }
+                if (slot.reviews != null && !cached.containsKey(slot.id)) {
+                    if (slot.isDirty()) {
+                        cached.put(slot.id, slot);
+                        cachedReviews += slot.count;
+                    } else {
+                        slot.reviews = null;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return all;
+    }
+
+    private boolean write(Snapshot snapshot) {
+        Slot slot = snapshot.slot;
+        try {
+            fileLock.lock();
+            // a newer copy may have been written in the meantime
+            if (snapshot.modifications > slot.flushed) {
+                RatingAggregate ratings = RatingAggregate.of(snapshot.reviews);
+                files.write(files.file(slot.id), snapshot.reviews);
+                index.append(slot.id, ratings.getSum(), ratings.getCount(), snapshot.journalRecords);
+                slot.flushed = snapshot.modifications;
+                slot.flushedTime = Files.getLastModifiedTime(files.file(slot.id));
+            }
+            return true;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error writing back reviews of product " + slot.id + " " + ex.getMessage());
+            return false;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private static boolean sameReviews(List<Review> current, List<Review> reviews) {
+        if (current.size() != reviews.size()) {
+            return false;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            Review review = current.get(i);
+            Review other = reviews.get(i);
+            if (review.getRating() != other.getRating()
+                    || !Objects.equals(review.getComments(), other.getComments())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The reviews of one product, in memory or left in its reviews file
+     */
+    private static final class Slot {
+
+        private final int id;
+        // the number of reviews, whether they are in memory or not
+        private int count;
+        // the journaled reviews of the product, including those its file holds
+        private int journalRecords;
+        // whether the reviews of the product are in its reviews file
+        private boolean stored;
+        // changes whenever the reviews are read or their file is reopened
+        private int reads;
+        private List<Review> reviews;
+        private int modifications;
+        // the last modification written back, guarded by the cache lock
+        private int written;
+        // the last modification written back and the time of its file, guarded by the file lock
+        private int flushed;
+        private FileTime flushedTime;
+
+        private Slot(int id, int journalRecords) {
+            this.id = id;
+            this.journalRecords = journalRecords;
+        }
+
+        private boolean isDirty() {
+            return modifications != written;
+        }
+    }
+
+    /**
+     * A copy of the reviews of a product, to be written back outside the
+     * lock of the cache
+     */
+    private static final class Snapshot {
+
+        private final Slot slot;
+        private final List<Review> reviews;
+        private final int modifications;
+        private final int journalRecords;
+
+        private Snapshot(Slot slot) {
+            this.slot = slot;
+            this.reviews = new ArrayList<>(slot.reviews);
+            this.modifications = slot.modifications;
+            this.journalRecords = slot.journalRecords;
+        }
+    }
+}
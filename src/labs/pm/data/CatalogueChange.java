@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.List;
+
+/**
+ * {@code CatalogueChange} is one change of the catalogue of a primary
+ * product manager, published in order on its {@link ChangeStream}
+ * <br>
+ * A review carries the rating and comments the primary re-rated its product
+ * with, so a replica re-rates the product from the same rating sums. A
+ * replaced catalogue carries nothing, since replicas copy it again. The
+ * stream also sends it to a replica that fell too far behind or failed to
+ * apply a change, in place of the changes it drops
+ *
+ * @author richa
+ */
+final class CatalogueChange {
+
+    enum Type {
+        PRODUCT_CREATED, REVIEW_ADDED, PRODUCT_REPLACED, CATALOGUE_REPLACED
+    }
+
+    private final long sequence;
+    private final long published;
+    private final Type type;
+    private final int productId;
+    private final Product product;
+    private final Rating rating;
+    private final String comments;
+    private final List<Review> reviews;
+
+    CatalogueChange(long sequence, Type type, int productId, Product product, Rating rating, String comments,
+            List<Review> reviews) {
+        this(sequence, System.nanoTime(), type, productId, product, rating, comments, reviews);
+    }
+
+    private CatalogueChange(long sequence, long published, Type type, int productId, Product product, Rating rating,
+            String comments, List<Review> reviews) {
+        this.sequence = sequence;
+        this.published = published;
+        this.type = type;
+        this.productId = productId;
+        this.product = product;
+        this.rating = rating;
+        this.comments = comments;
+        this.reviews = reviews;
+    }
+
+    /**
+     * Replaces changes that a replica will not apply one by one with a copy
+     * of the whole catalogue
+     *
+     * @param last the last of the changes replaced
+     * @param published when the first of the changes replaced was published
+     * @return the change that makes the replica copy the catalogue again
+     */
+    static CatalogueChange resync(CatalogueChange last, long published) {
+        return new CatalogueChange(last.sequence, published, Type.CATALOGUE_REPLACED, 0, null, null, null, null);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the change was published at
+     */
+    long getPublished() {
+        return published;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    int getProductId() {
+        return productId;
+    }
+
+    /**
+     * @return the created or replaced product
+     */
+    Product getProduct() {
+        return product;
+    }
+
+    Rating getRating() {
+        return rating;
+    }
+
+    String getComments() {
+        return comments;
+    }
+
+    /**
+     * @return all the reviews of a replaced product
+     */
+    List<Review> getReviews() {
+        return reviews;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * {@code CatalogueSnapshot} reads and writes the catalogue in a compact,
+ * versioned binary format
+ * <br>
+ * A snapshot starts with a header holding the {@link #MAGIC magic number},
+ * the format {@link #VERSION version}, the product and review counts and the
+ * generation of the review journal that follows the snapshot. The
+ * header is followed by blocks, each one prefixed by its length and its CRC32
+ * checksum, and a block of length zero marks the end of the file
+ * <br>
+ * Every block holds whole product records: the type tag, id, rating, price as
+ * scale and unscaled bytes, length prefixed UTF-8 name, best before epoch day
+ * for food, and the reviews as rating and length prefixed UTF-8 comments, with
+ * a length of -1 for a review without comments
+ *
+ * @author richa
+ */
+final class CatalogueSnapshot {
+
+    static final int MAGIC = 0x504D534E;
+    static final int VERSION = 2;
+
+    // version 1 had no journal generation
+    private static final int HEADER_SIZE = 24;
+    private static final int VERSION_1_HEADER_SIZE = 20;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final byte DRINK = 'D';
+    private static final byte FOOD = 'F';
+
+    private CatalogueSnapshot() {
+    }
+
+    /**
+     * Checks whether a file starts with the snapshot magic number, so that
+     * files written with Java serialization can still be restored
+     *
+     * @param file the file to check
+     * @return {@code true} if the file is a binary snapshot
+     * @throws IOException if the file cannot be read
+     */
+    static boolean isSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Reads the journal generation a snapshot was taken before
+     *
+     * @param file the snapshot file
+     * @return the generation, 0 for a snapshot of the first format version
+     * @throws IOException if the file is not a snapshot or cannot be read
+     */
+    static int journalGeneration(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            return (header.limit() == HEADER_SIZE) ? header.getInt(HEADER_SIZE - Integer.BYTES) : 0;
+        }
+    }
+
+    /**
+     * Writes a snapshot, fetching the reviews of one product at a time, and
+     * deletes the file again if the snapshot cannot be completed
+     *
+     * @param file the snapshot file
+     * @param products the products
+     * @param productCount the number of products
+     * @param reviewCount the number of reviews of all the products
+     * @param reviews the reviews of a product by id
+     * @param journalGeneration the generation of the review journal that
+     * holds the reviews added after the snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void write(Path file, Iterable<Product> products, int productCount, long reviewCount,
+            IntFunction<List<Review>> reviews, int journalGeneration) throws IOException {
+        try {
+            writeBlocks(file, products, productCount, reviewCount, reviews, journalGeneration);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+    }
+
+    private static void writeBlocks(Path file, Iterable<Product> products, int productCount, long reviewCount,
+            IntFunction<List<Review>> reviews, int journalGeneration) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(productCount)
+                    .putLong(reviewCount)
+                    .putInt(journalGeneration)
+                    .flip();
+            writeFully(channel, header);
+            ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            for (Product product : products) {
+                List<Review> productReviews = reviews.apply(product.getId());
+                int start = block.position();
+                try {
+                    putRecord(block, product, productReviews);
+                } catch (BufferOverflowException ex) {
+                    block.position(start);
+                    if (start > 0) {
+                        flushBlock(channel, block);
+                    }
+                    block = putOversized(block, product, productReviews);
+                }
+            }
+            flushBlock(channel, block);
+            // an empty block marks the end of the snapshot
+            flushBlock(channel, block);
+            channel.force(true);
+        }
+    }
+
+    static Map<Product, List<Review>> read(FileChannel channel) throws IOException {
+        ByteBuffer header = readHeader(channel);
+        header.position(2 * Integer.BYTES);
+        int productCount = header.getInt();
+        long reviewCount = header.getLong();
+        Map<Product, List<Review>> products = new ConcurrentHashMap<>(Math.max(16, productCount * 4 / 3));
+        long reviewsRead = 0;
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        CRC32 crc = new CRC32();
+        for (int blockNumber = 0;; blockNumber++) {
+            blockHeader.clear();
+            readFully(channel, blockHeader);
+            int length = blockHeader.getInt();
+            int checksum = blockHeader.getInt();
+            if (length == 0) {
+                break;
+            }
+            if (length > block.capacity()) {
+                block = ByteBuffer.allocateDirect(length);
+            }
+            block.clear().limit(length);
+            readFully(channel, block);
+            crc.reset();
+            crc.update(block);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Snapshot block " + blockNumber + " is corrupted");
+            }
+            block.flip();
+            while (block.hasRemaining()) {
+                List<Review> reviews = new ArrayList<>();
+                Product product = getRecord(block, reviews);
+                reviewsRead += reviews.size();
+                products.put(product, reviews);
+            }
+        }
+        if (products.size() != productCount || reviewsRead != reviewCount) {
+            throw new IOException("Snapshot is incomplete, expected " + productCount + " products and "
+                    + reviewCount + " reviews but found " + products.size() + " and " + reviewsRead);
+        }
+        return products;
+    }
+
+    // reads a header of the current or the first version, leaving the channel at the first block
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, ByteBuffer.allocate(VERSION_1_HEADER_SIZE));
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a catalogue snapshot");
+        }
+        int version = header.getInt(Integer.BYTES);
+        if (version == 1) {
+            return header;
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        return readFully(channel, ByteBuffer.allocate(HEADER_SIZE).put(header));
+    }
+
+    private static ByteBuffer putOversized(ByteBuffer block, Product product, List<Review> reviews) {
+        // the block is empty here, it only grows when a single record does not fit
+        while (true) {
+            try {
+                putRecord(block, product, reviews);
+                return block;
+            } catch (BufferOverflowException ex) {
+                block = ByteBuffer.allocateDirect(block.capacity() * 2);
+            }
+        }
+    }
+
+    private static void putRecord(ByteBuffer block, Product product, List<Review> reviews) {
+        block.put(product instanceof Food ? FOOD : DRINK);
+        block.putInt(product.getId());
+        block.put((byte) product.getRating().ordinal());
+        BigDecimal price = product.getPrice();
+        block.putInt(price.scale());
+        byte[] unscaled = price.unscaledValue().toByteArray();
+        block.put((byte) unscaled.length);
+        block.put(unscaled);
+        putString(block, product.getName());
+        if (product instanceof Food) {
+            block.putLong(product.getBestBefore().toEpochDay());
+        }
+        block.putInt(reviews.size());
+        for (Review review : reviews) {
+            block.put((byte) review.getRating().ordinal());
+            putString(block, review.getComments());
+        }
+    }
+
+    private static Product getRecord(ByteBuffer block, List<Review> reviews) throws IOException {
+        byte type = block.get();
+        int id = block.getInt();
+        Rating rating = Rateable.convert(block.get());
+        int scale = block.getInt();
+        byte[] unscaled = new byte[block.get() & 0xFF];
+        block.get(unscaled);
+        BigDecimal price = new BigDecimal(new BigInteger(unscaled), scale);
+        String name = getString(block);
+        Product product;
+        switch (type) {
+            case FOOD:
+                product = new Food(id, name, price, rating, LocalDate.ofEpochDay(block.getLong()));
+                break;
+            case DRINK:
+                product = new Drink(id, name, price, rating);
+                break;
+            default:
+                throw new IOException("Unknown product type " + type + " in snapshot");
+        }
+        int count = block.getInt();
+        for (int i = 0; i < count; i++) {
+            Rating reviewRating = Rateable.convert(block.get());
+            reviews.add(new Review(reviewRating, getString(block)));
+        }
+        return product;
+    }
+
+    private static void putString(ByteBuffer block, String text) {
+        if (text == null) {
+            block.putInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        block.putInt(bytes.length);
+        block.put(bytes);
+    }
+
+    private static String getString(ByteBuffer block) {
+        int length = block.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        block.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void flushBlock(FileChannel channel, ByteBuffer block) throws IOException {
+        block.flip();
+        CRC32 crc = new CRC32();
+        crc.update(block);
+        block.rewind();
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        blockHeader.putInt(block.remaining()).putInt((int) crc.getValue()).flip();
+        writeFully(channel, blockHeader);
+        writeFully(channel, block);
+        block.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        return buffer.flip();
+    }
+}
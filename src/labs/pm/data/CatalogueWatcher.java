@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code CatalogueWatcher} watches folders for files that are added or
+ * changed, and hands them over in batches to be reloaded
+ * <br>
+ * Events are collected until no new event arrived for the debounce interval,
+ * or for at most ten intervals during a steady stream of events, so a burst
+ * of file drops and the several events of each write turn into one reload of
+ * every file concerned
+ *
+ * @author richa
+ */
+final class CatalogueWatcher {
+
+    private static final Logger logger = Logger.getLogger(CatalogueWatcher.class.getName());
+    private static final int MAX_DEBOUNCE_INTERVALS = 10;
+
+    private final WatchService watchService;
+    private final long debounceNanos;
+    private final Consumer<Set<Path>> reload;
+    private final Thread watcher;
+
+    /**
+     * Starts watching folders
+     *
+     * @param folders the folders to watch
+     * @param debounceMillis the quiet time before changed files are reloaded
+     * @param reload receives the files added or changed since the last batch
+     * @throws IOException if a folder cannot be watched
+     */
+    CatalogueWatcher(List<Path> folders, long debounceMillis, Consumer<Set<Path>> reload) throws IOException {
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.reload = reload;
+        watchService = folders.get(0).getFileSystem().newWatchService();
+        try {
+            for (Path folder : folders) {
+                folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        watcher = new Thread(this::watch, "catalogue-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing catalogue watcher " + ex.getMessage());
+        }
+    }
+
+    private void watch() {
+        Set<Path> changed = new LinkedHashSet<>();
+        long firstChange = 0;
+        try {
+            while (true) {
+                WatchKey key;
+                if (changed.isEmpty()) {
+                    key = watchService.take();
+                    firstChange = System.nanoTime();
+                } else {
+                    long wait = Math.min(debounceNanos,
+                            firstChange + debounceNanos * MAX_DEBOUNCE_INTERVALS - System.nanoTime());
+                    key = (wait > 0) ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+                }
+                if (key == null) {
+                    reload(changed);
+                    changed = new LinkedHashSet<>();
+                    continue;
+                }
+                Path folder = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.log(Level.WARNING, "Catalogue watcher missed events in " + folder);
+                    } else {
+                        changed.add(folder.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // closed on shutdown
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reload(Set<Path> changed) {
+        try {
+            reload.accept(changed);
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Error reloading changed files " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code ChangeStream} publishes the changes of a catalogue, numbered in the
+ * order they are applied, to the replicas that subscribed to it
+ * <br>
+ * Each subscription queues the changes for a thread of its own that applies
+ * them in batches, so publishing never waits for a replica. A catalogue
+ * without subscriptions publishes nothing
+ * <br>
+ * A subscription queues at most a backlog of changes. A replica that falls
+ * further behind, or fails to apply a batch, has its queued changes replaced
+ * by one that makes it copy the catalogue again
+ * <br>
+ * Publishing takes one lock shared by all the shards of the catalogue, so
+ * while a replica is subscribed, the writes of all the shards are ordered
+ * one after the other
+ * <br>
+ * Changes are published while the catalogue is locked, so a replica that
+ * copies the catalogue under its write locks knows that exactly the changes
+ * after {@link #getSequence()} are still to come
+ *
+ * @author richa
+ */
+final class ChangeStream {
+
+    private static final Logger logger = Logger.getLogger(ChangeStream.class.getName());
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private long sequence;
+
+    void productCreated(Product product) {
+        if (!subscriptions.isEmpty()) {
+            publish(CatalogueChange.Type.PRODUCT_CREATED, product.getId(), product, null, null, null);
+        }
+    }
+
+    void reviewAdded(int id, Rating rating, String comments) {
+        if (!subscriptions.isEmpty()) {
+            publish(CatalogueChange.Type.REVIEW_ADDED, id, null, rating, comments, null);
+        }
+    }
+
+    /**
+     * Publishes a product whose reviews were all replaced, as when its files
+     * are reloaded
+     *
+     * @param product the re-rated product
+     * @param reviews all the reviews of the product
+     */
+    void productReplaced(Product product, List<Review> reviews) {
+        if (!subscriptions.isEmpty()) {
+            publish(CatalogueChange.Type.PRODUCT_REPLACED, product.getId(), product, null, null,
+                    new ArrayList<>(reviews));
+        }
+    }
+
+    void catalogueReplaced() {
+        if (!subscriptions.isEmpty()) {
+            publish(CatalogueChange.Type.CATALOGUE_REPLACED, 0, null, null, null, null);
+        }
+    }
+
+    /**
+     * @return the number of the last change published
+     */
+    long getSequence() {
+        try {
+            lock.lock();
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts delivering the changes published from now on
+     *
+     * @param name the name of the thread that applies the changes
+     * @param maxBacklog the number of changes queued before they are replaced
+     * by a copy of the catalogue
+     * @param apply applies a batch of changes, in the order they were
+     * published
+     * @return the subscription, to be cancelled when the changes are no
+     * longer needed
+     */
+    Subscription subscribe(String name, int maxBacklog, Consumer<List<CatalogueChange>> apply) {
+        Subscription subscription = new Subscription(name, maxBacklog, apply);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    // numbering and queuing under one lock keeps every subscription in the same order
+    private void publish(CatalogueChange.Type type, int id, Product product, Rating rating, String comments,
+            List<Review> reviews) {
+        try {
+            lock.lock();
+            CatalogueChange change = new CatalogueChange(++sequence, type, id, product, rating, comments, reviews);
+            for (Subscription subscription : subscriptions) {
+                subscription.offer(change);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The changes queued for one replica, and the thread that applies them
+     */
+    final class Subscription {
+
+        private static final long NOTHING_PENDING = Long.MIN_VALUE;
+        private static final long RESYNC_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final int maxBacklog;
+        private final Consumer<List<CatalogueChange>> apply;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition pending = lock.newCondition();
+        private final Condition applied = lock.newCondition();
+        private List<CatalogueChange> queue = new ArrayList<>();
+        // when the oldest change that is not applied yet was published
+        private volatile long pendingSince = NOTHING_PENDING;
+        private boolean cancelled;
+        private final Thread applier;
+
+        private Subscription(String name, int maxBacklog, Consumer<List<CatalogueChange>> apply) {
+            this.maxBacklog = maxBacklog;
+            this.apply = apply;
+            applier = new Thread(this::applyBatches, name);
+            applier.setDaemon(true);
+            applier.start();
+        }
+
+        /**
+         * Waits until no change older than a staleness bound is left to
+         * apply
+         *
+         * @param maxStalenessNanos how long ago the oldest change not yet
+         * applied may have been published
+         */
+        void awaitApplied(long maxStalenessNanos) {
+            long since = pendingSince;
+            if (since == NOTHING_PENDING || System.nanoTime() - since <= maxStalenessNanos) {
+                return;
+            }
+            try {
+                lock.lock();
+                while (!cancelled && pendingSince != NOTHING_PENDING
+                        && System.nanoTime() - pendingSince > maxStalenessNanos) {
+                    applied.await();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stops delivering changes, leaving those still queued unapplied
+         */
+        void cancel() {
+            subscriptions.remove(this);
+            try {
+                lock.lock();
+                cancelled = true;
+                pending.signal();
+                applied.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void offer(CatalogueChange change) {
+            try {
+                lock.lock();
+                if (pendingSince == NOTHING_PENDING) {
+                    pendingSince = change.getPublished();
+                }
+                if (queue.size() >= maxBacklog) {
+                    if (queue.get(0).getType() != CatalogueChange.Type.CATALOGUE_REPLACED) {
+                        logger.log(Level.WARNING, "Replica " + applier.getName() + " fell " + queue.size()
+                                + " changes behind, copying the catalogue again");
+                    }
+                    resync(change);
+                } else {
+                    queue.add(change);
+                }
+                pending.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void applyBatches() {
+            while (true) {
+                List<CatalogueChange> batch;
+                try {
+                    lock.lock();
+                    while (queue.isEmpty() && !cancelled) {
+                        pending.await();
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    batch = queue;
+                    queue = new ArrayList<>();
+                } catch (InterruptedException ex) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                boolean failed = false;
+                try {
+                    apply.accept(batch);
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Error applying catalogue changes, copying the catalogue again "
+                            + ex.getMessage(), ex);
+                    failed = true;
+                }
+                try {
+                    lock.lock();
+                    if (failed) {
+                        // the replica copies the catalogue again before the changes published since
+                        queue.add(0, CatalogueChange.resync(batch.get(batch.size() - 1), batch.get(0).getPublished()));
+                    }
+                    pendingSince = queue.isEmpty() ? NOTHING_PENDING : queue.get(0).getPublished();
+                    applied.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                // a copy of the catalogue that failed is retried after a pause
+                if (failed && batch.get(0).getType() == CatalogueChange.Type.CATALOGUE_REPLACED) {
+                    LockSupport.parkNanos(RESYNC_RETRY_NANOS);
+                }
+            }
+        }
+
+        // the caller holds the lock; the copy includes the changes dropped and the one published now
+        private void resync(CatalogueChange change) {
+            long since = queue.isEmpty() ? change.getPublished() : queue.get(0).getPublished();
+            queue.clear();
+            queue.add(CatalogueChange.resync(change, since));
+        }
+    }
+}
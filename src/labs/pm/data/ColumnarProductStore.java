@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code ColumnarProductStore} keeps the catalogue in parallel primitive
+ * arrays, one row per product: ids, type tags, prices in cents, rating
+ * ordinals, best before epoch days, names and the sums, counts and versions
+ * of the review ratings
+ * <br>
+ * Re-rating a product only changes its row, and {@link Product} objects are
+ * only created for the products handed out. Queries are computed by scanning
+ * the columns, so the store needs no secondary indexes, while the discount
+ * totals are kept up to date in cents as rows are added and re-rated
+ * <br>
+ * Prices are kept in cents, products priced in fractions of a cent are
+ * rejected
+ * <br>
+ * The version of a row is written last with a release store and read with
+ * an acquire load, so a reader that sees a version also sees the rating it
+ * was published with
+ *
+ * @author richa
+ */
+final class ColumnarProductStore implements ProductStore {
+
+    private static final byte FOOD = 'F';
+    private static final byte DRINK = 'D';
+    private static final int PRICE_SCALE = 2;
+    private static final Rating[] RATINGS = Rating.values();
+    private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private int size;
+    private int[] ids;
+    private byte[] types;
+    private long[] prices;
+    private byte[] ratings;
+    private int[] bestBefore;
+    private String[] names;
+    private long[] ratingSums;
+    private int[] ratingCounts;
+    private long[] versions;
+    private final AtomicLong lastVersion = new AtomicLong();
+    // open addressing table of row + 1 by id, 0 marks a free slot
+    private int[] slots;
+    private final Map<String, String> namePool = new HashMap<>();
+    private final DiscountAggregates discounts = new DiscountAggregates();
+
+    ColumnarProductStore() {
+        allocate(16);
+        discounts.startRollover();
+    }
+
+    @Override
+    public Product get(int id) {
+        int row = rowOf(id);
+        return (row < 0) ? null : view(row);
+    }
+
+    @Override
+    public boolean add(Product product, RatingAggregate aggregate) {
+        if (rowOf(product.getId()) >= 0) {
+            return false;
+        }
+        long cents = priceInCents(product);
+        discounts.add(product);
+        if (size == ids.length) {
+            grow();
+        }
+        int row = size++;
+        set(row, product, aggregate, cents);
+        insertSlot(row);
+        return true;
+    }
+
+    @Override
+    public void put(Product product, RatingAggregate aggregate) {
+        int row = rowOf(product.getId());
+        if (row < 0) {
+            add(product, aggregate);
+        } else {
+            long cents = priceInCents(product);
+            discounts.replace(view(row), product);
+            set(row, product, aggregate, cents);
+        }
+    }
+
+    @Override
+    public Product addRatings(int id, long ratingSum, int ratingCount) {
+        int row = rowOf(id);
+        ratingSums[row] += ratingSum;
+        ratingCounts[row] += ratingCount;
+        int rating = RatingAggregate.average(ratingSums[row], ratingCounts[row]).ordinal();
+        if (rating != ratings[row]) {
+            discounts.rerate(ratings[row], rating, types[row] == FOOD, bestBefore[row], discount(prices[row]));
+            ratings[row] = (byte) rating;
+        }
+        VERSIONS.setRelease(versions, row, lastVersion.incrementAndGet());
+        return view(row);
+    }
+
+    @Override
+    public long getVersion(int id) {
+        int row = rowOf(id);
+        return (row < 0) ? -1 : (long) VERSIONS.getAcquire(versions, row);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        Arrays.fill(names, null);
+        Arrays.fill(slots, 0);
+        namePool.clear();
+        discounts.clear();
+    }
+
+    @Override
+    public Iterator<Product> iterator() {
+        return new Iterator<>() {
+            private int row;
+
+            @Override
+            public boolean hasNext() {
+                return row < size;
+            }
+
+            @Override
+            public Product next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return view(row++);
+            }
+        };
+    }
+
+    /**
+     * Scans the rows for a query, creating products only for the rows that
+     * are returned, or for those a filter or comparator has to look at
+     * <br>
+     * Queries without an order list the products in the order they were
+     * added. Ordered queries can resume after a product of another shard,
+     * which is compared by value
+     */
+    @Override
+    public List<Product> query(ProductQuery query, Product after, int limit) {
+        RowFilter filter = new RowFilter(query);
+        if (query.getSorter() != null) {
+            return query.select(new Iterator<>() {
+                private int row = filter.next(-1);
+
+                @Override
+                public boolean hasNext() {
+                    return row < size;
+                }
+
+                @Override
+                public Product next() {
+                    Product product = view(row);
+                    row = filter.next(row);
+                    return product;
+                }
+            }, after, limit, false);
+        }
+        int afterRow = (after == null) ? -1 : rowOf(after.getId());
+        RowOrder order = rowOrder(query.getOrder(), query.isDescending());
+        if (order == null) {
+            List<Product> result = new ArrayList<>();
+            for (int row = filter.next(afterRow); row < size && result.size() < limit; row = filter.next(row)) {
+                result.add(view(row));
+            }
+            return result;
+        }
+        Comparator<Product> afterOrder = (after != null && afterRow < 0) ? query.getResultOrder() : null;
+        List<Integer> rows = new ArrayList<>();
+        PriorityQueue<Integer> best = (limit == Integer.MAX_VALUE) ? null
+                : new PriorityQueue<>((a, b) -> order.compare(b, a));
+        for (int row = filter.next(-1); row < size; row = filter.next(row)) {
+            if ((afterRow >= 0 && order.compare(row, afterRow) <= 0)
+                    || (afterOrder != null && afterOrder.compare(view(row), after) <= 0)) {
+                continue;
+            }
+            if (best == null) {
+                rows.add(row);
+            } else {
+                // a top K keeps the best rows in a heap whose head is the worst of them
+                best.add(row);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        if (best != null) {
+            rows.addAll(best);
+        }
+        rows.sort(order::compare);
+        List<Product> result = new ArrayList<>(rows.size());
+        rows.forEach(row -> result.add(view(row)));
+        return result;
+    }
+
+    @Override
+    public Map<Rating, BigDecimal> getDiscountTotals(LocalTime time) {
+        return discounts.getTotals(time);
+    }
+
+    @Override
+    public void close() {
+        discounts.stopRollover();
+    }
+
+    private void set(int row, Product product, RatingAggregate aggregate, long cents) {
+        ids[row] = product.getId();
+        types[row] = (product instanceof Food) ? FOOD : DRINK;
+        prices[row] = cents;
+        ratings[row] = (byte) product.getRating().ordinal();
+        bestBefore[row] = (product instanceof Food) ? (int) product.getBestBefore().toEpochDay() : 0;
+        names[row] = namePool.computeIfAbsent(product.getName(), name -> name);
+        ratingSums[row] = aggregate.getSum();
+        ratingCounts[row] = aggregate.getCount();
+        VERSIONS.setRelease(versions, row, lastVersion.incrementAndGet());
+    }
+
+    private static long priceInCents(Product product) {
+        try {
+            return product.getPrice().setScale(PRICE_SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Price " + product.getPrice() + " of product "
+                    + product.getId() + " cannot be stored in cents", ex);
+        }
+    }
+
+    // the discount rate of 10% rounded half up to the cent, as Product does
+    private static long discount(long cents) {
+        return (cents >= 0) ? (cents + 5) / 10 : -((5 - cents) / 10);
+    }
+
+    private Product view(int row) {
+        BigDecimal price = BigDecimal.valueOf(prices[row], PRICE_SCALE);
+        Rating rating = RATINGS[ratings[row]];
+        return (types[row] == FOOD)
+                ? new Food(ids[row], names[row], price, rating, LocalDate.ofEpochDay(bestBefore[row]))
+                : new Drink(ids[row], names[row], price, rating);
+    }
+
+    private RowOrder rowOrder(ProductQuery.Order order, boolean descending) {
+        if (order == null) {
+            return null;
+        }
+        RowOrder rows;
+        switch (order) {
+            case PRICE:
+                rows = (a, b) -> Long.compare(prices[a], prices[b]);
+                break;
+            case RATING:
+                rows = (a, b) -> Byte.compare(ratings[a], ratings[b]);
+                break;
+            default:
+                // drinks are best before today and come after the food that is
+                long today = LocalDate.now().toEpochDay();
+                rows = (a, b) -> Long.compare(dateKey(a, today), dateKey(b, today));
+        }
+        RowOrder byId = (a, b) -> {
+            int result = rows.compare(a, b);
+            return (result != 0) ? result : Integer.compare(ids[a], ids[b]);
+        };
+        return descending ? (a, b) -> byId.compare(b, a) : byId;
+    }
+
+    private long dateKey(int row, long today) {
+        return (types[row] == FOOD) ? bestBefore[row] * 2L : today * 2 + 1;
+    }
+
+    private int rowOf(int id) {
+        int mask = slots.length - 1;
+        for (int slot = hash(id) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (ids[row] == id) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private void insertSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = hash(ids[row]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        types = Arrays.copyOf(types, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+        bestBefore = Arrays.copyOf(bestBefore, capacity);
+        names = Arrays.copyOf(names, capacity);
+        ratingSums = Arrays.copyOf(ratingSums, capacity);
+        ratingCounts = Arrays.copyOf(ratingCounts, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        // the id table stays at most half full
+        slots = new int[capacity * 2];
+        for (int row = 0; row < size; row++) {
+            insertSlot(row);
+        }
+    }
+
+    private void allocate(int capacity) {
+        ids = new int[capacity];
+        types = new byte[capacity];
+        prices = new long[capacity];
+        ratings = new byte[capacity];
+        bestBefore = new int[capacity];
+        names = new String[capacity];
+        ratingSums = new long[capacity];
+        ratingCounts = new int[capacity];
+        versions = new long[capacity];
+        slots = new int[capacity * 2];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private interface RowOrder {
+
+        int compare(int a, int b);
+    }
+
+    /**
+     * The conditions of a query on the columns, checked before any product
+     * is created
+     */
+    private final class RowFilter {
+
+        private final ProductQuery query;
+        private final long minCents;
+        private final long maxCents;
+        private final int minRating;
+        private final int maxRating;
+        private final long fromDay;
+        private final long toDay;
+        private final boolean drinks;
+
+        private RowFilter(ProductQuery query) {
+            this.query = query;
+            minCents = (query.getMinPrice() == null) ? Long.MIN_VALUE
+                    : cents(query.getMinPrice(), RoundingMode.CEILING);
+            maxCents = (query.getMaxPrice() == null) ? Long.MAX_VALUE
+                    : cents(query.getMaxPrice(), RoundingMode.FLOOR);
+            minRating = (query.getMinRating() == null) ? 0 : query.getMinRating().ordinal();
+            maxRating = (query.getMaxRating() == null) ? RATINGS.length - 1 : query.getMaxRating().ordinal();
+            fromDay = (query.getBestBeforeFrom() == null) ? Long.MIN_VALUE : query.getBestBeforeFrom().toEpochDay();
+            toDay = (query.getBestBeforeTo() == null) ? Long.MAX_VALUE : query.getBestBeforeTo().toEpochDay();
+            long today = LocalDate.now().toEpochDay();
+            drinks = fromDay <= today && today <= toDay;
+        }
+
+        /**
+         * Finds the next row that matches the query
+         *
+         * @param row the last row checked, -1 to start
+         * @return the next matching row, or the store size if there is none
+         */
+        private int next(int row) {
+            while (++row < size) {
+                if (prices[row] >= minCents && prices[row] <= maxCents
+                        && ratings[row] >= minRating && ratings[row] <= maxRating
+                        && ((types[row] == FOOD) ? bestBefore[row] >= fromDay && bestBefore[row] <= toDay : drinks)
+                        && (!query.hasFilter() || query.matches(view(row)))) {
+                    return row;
+                }
+            }
+            return size;
+        }
+
+        private long cents(BigDecimal price, RoundingMode rounding) {
+            BigDecimal cents = price.setScale(PRICE_SCALE, rounding).movePointRight(PRICE_SCALE);
+            if (cents.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0) {
+                return Long.MAX_VALUE;
+            }
+            if (cents.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) < 0) {
+                return Long.MIN_VALUE;
+            }
+            return cents.longValueExact();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code CompactReviewStore} keeps the reviews of every product in a few large
+ * arrays instead of a {@link Review} object each
+ * <br>
+ * Each review takes a rating byte, the id of its comment and the index of the
+ * next review of the same product. Comments are stored once per distinct
+ * text, as UTF-8 in shared slabs of up to 1 MiB, which can be allocated
+ * outside the heap. Reviews are only turned back into {@code Review} objects
+ * when the reviews of a product are read
+ * <br>
+ * The reviews are split into segments by product id, each with its own
+ * lock, comments and slabs, so that reviews of products in different
+ * segments are appended concurrently. A lock is only held to append one
+ * review or copy the reviews of one product
+ *
+ * @author richa
+ */
+final class CompactReviewStore implements ReviewStore {
+
+    private static final int SEGMENTS = 16;
+    private static final int FIRST_SLAB_SIZE = 1 << 12;
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int NONE = -1;
+    private static final Rating[] RATINGS = Rating.values();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * @param direct {@code true} to allocate the comment slabs outside the
+     * heap
+     */
+    CompactReviewStore(boolean direct) {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(direct);
+        }
+    }
+
+    @Override
+    public void add(int id, Rating rating, String comments) {
+        // the text is encoded before taking the lock
+        segment(id).add(id, rating, (comments == null) ? null : comments.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void addAll(int id, List<Review> reviews) {
+        segment(id).addAll(id, reviews);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The replaced reviews keep their space until the store is cleared
+     */
+    @Override
+    public int replace(int id, List<Review> reviews) {
+        return segment(id).replace(id, reviews);
+    }
+
+    @Override
+    public List<Review> get(int id) {
+        return segment(id).get(id);
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segment(int id) {
+        return segments[spread(id) & (SEGMENTS - 1)];
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The reviews of the products of one segment, with the comments they use
+     */
+    private static final class Segment {
+
+        private final boolean direct;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private int size;
+        // reviews still in the arrays whose product has new reviews
+        private int replaced;
+        private byte[] ratings = new byte[16];
+        private int[] comments = new int[16];
+        private int[] next = new int[16];
+        // the first and last review and the review count of each product
+        private final IntObjectMap<int[]> chains = new IntObjectMap<>();
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private int commentCount;
+        // the slab index in the high and the offset in the low half
+        private long[] commentAt = new long[16];
+        private int[] commentLength = new int[16];
+        private int[] commentHash = new int[16];
+        // open addressing table of comment id + 1 by text, 0 marks a free slot
+        private int[] commentTable = new int[32];
+
+        private Segment(boolean direct) {
+            this.direct = direct;
+        }
+
+        void add(int id, Rating rating, byte[] text) {
+            try {
+                lock.lock();
+                append(id, rating, text);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void addAll(int id, List<Review> reviews) {
+            try {
+                lock.lock();
+                for (Review review : reviews) {
+                    append(id, review.getRating(),
+                            (review.getComments() == null) ? null : review.getComments().getBytes(StandardCharsets.UTF_8));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int replace(int id, List<Review> reviews) {
+            try {
+                lock.lock();
+                int[] chain = chains.remove(id);
+                if (chain != null) {
+                    replaced += chain[2];
+                }
+                for (Review review : reviews) {
+                    append(id, review.getRating(),
+                            (review.getComments() == null) ? null : review.getComments().getBytes(StandardCharsets.UTF_8));
+                }
+                return (chain == null) ? 0 : chain[2];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Review> get(int id) {
+            try {
+                lock.lock();
+                int[] chain = chains.get(id);
+                if (chain == null) {
+                    return new ArrayList<>();
+                }
+                List<Review> reviews = new ArrayList<>(chain[2]);
+                for (int review = chain[0]; review != NONE; review = next[review]) {
+                    reviews.add(new Review(RATINGS[ratings[review]], comment(comments[review])));
+                }
+                return reviews;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            try {
+                lock.lock();
+                return size - replaced;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            try {
+                lock.lock();
+                size = 0;
+                replaced = 0;
+                chains.clear();
+                slabs.clear();
+                commentCount = 0;
+                Arrays.fill(commentTable, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void append(int id, Rating rating, byte[] text) {
+            if (size == ratings.length) {
+                int capacity = size * 2;
+                ratings = Arrays.copyOf(ratings, capacity);
+                comments = Arrays.copyOf(comments, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            int review = size++;
+            ratings[review] = (byte) rating.ordinal();
+            comments[review] = (text == null) ? NONE : intern(text);
+            next[review] = NONE;
+            int[] chain = chains.get(id);
+            if (chain == null) {
+                chains.put(id, new int[]{review, review, 1});
+            } else {
+                next[chain[1]] = review;
+                chain[1] = review;
+                chain[2]++;
+            }
+        }
+
+        // finds the id of a comment text, storing the text if it is new
+        private int intern(byte[] text) {
+            int hash = Arrays.hashCode(text);
+            int mask = commentTable.length - 1;
+            int slot = spread(hash) & mask;
+            while (commentTable[slot] != 0) {
+                int comment = commentTable[slot] - 1;
+                if (commentHash[comment] == hash && equalText(comment, text)) {
+                    return comment;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (commentCount == commentAt.length) {
+                int capacity = commentCount * 2;
+                commentAt = Arrays.copyOf(commentAt, capacity);
+                commentLength = Arrays.copyOf(commentLength, capacity);
+                commentHash = Arrays.copyOf(commentHash, capacity);
+            }
+            int comment = commentCount++;
+            commentAt[comment] = store(text);
+            commentLength[comment] = text.length;
+            commentHash[comment] = hash;
+            commentTable[slot] = comment + 1;
+            // the table stays at most half full
+            if (commentCount * 2 > commentTable.length) {
+                rehashComments(commentTable.length * 2);
+            }
+            return comment;
+        }
+
+        private long store(byte[] text) {
+            ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+            if (slab == null || slab.remaining() < text.length) {
+                // slabs double up to their full size, and a longer text gets a slab of its own
+                int capacity = Math.max(text.length,
+                        (slab == null) ? FIRST_SLAB_SIZE : Math.min(SLAB_SIZE, slab.capacity() * 2));
+                slab = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+                slabs.add(slab);
+            }
+            int offset = slab.position();
+            slab.put(text);
+            return ((long) (slabs.size() - 1) << 32) | offset;
+        }
+
+        private boolean equalText(int comment, byte[] text) {
+            if (commentLength[comment] != text.length) {
+                return false;
+            }
+            ByteBuffer slab = slabs.get((int) (commentAt[comment] >>> 32));
+            int offset = (int) commentAt[comment];
+            for (int i = 0; i < text.length; i++) {
+                if (slab.get(offset + i) != text[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String comment(int comment) {
+            if (comment == NONE) {
+                return null;
+            }
+            ByteBuffer slab = slabs.get((int) (commentAt[comment] >>> 32));
+            byte[] text = new byte[commentLength[comment]];
+            slab.get((int) commentAt[comment], text);
+            return new String(text, StandardCharsets.UTF_8);
+        }
+
+        private void rehashComments(int capacity) {
+            commentTable = new int[capacity];
+            int mask = capacity - 1;
+            for (int comment = 0; comment < commentCount; comment++) {
+                int slot = spread(commentHash[comment]) & mask;
+                while (commentTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                commentTable[slot] = comment + 1;
+            }
+        }
+
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * {@code CsvParser} reads comma separated values straight from the bytes of
+ * a UTF-8 file
+ * <br>
+ * Numbers, prices and dates are parsed from the bytes without creating
+ * intermediate strings, and prices are read exactly as written. Blank lines
+ * are skipped, and errors report the line and column where they were found
+ * <br>
+ * Usage: call {@link #nextLine()} to move to each line and then read its
+ * fields in order, the last field of a line can be read with
+ * {@link #nextText()} to take the rest of the line, commas included
+ *
+ * @author richa
+ */
+final class CsvParser {
+
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private final String source;
+    private final ByteBuffer bytes;
+    private byte[] scratch = new byte[64];
+    private int lineNumber;
+    private int lineStart;
+    private int lineEnd = -1;
+    private int position;
+
+    CsvParser(String source, ByteBuffer bytes) {
+        this.source = source;
+        this.bytes = bytes;
+        // skip a UTF-8 byte order mark
+        if (bytes.limit() >= 3 && bytes.get(0) == (byte) 0xEF && bytes.get(1) == (byte) 0xBB
+                && bytes.get(2) == (byte) 0xBF) {
+            lineEnd = 2;
+        }
+    }
+
+    /**
+     * Reads a file into the heap and closes it
+     * <br>
+     * Files are not mapped, even large ones: a mapping stays open until it is
+     * garbage collected, and on Windows a mapped file cannot be replaced, as
+     * the reviews files are when they are written back
+     *
+     * @param file the file to parse
+     * @return a parser positioned before the first line
+     * @throws IOException if the file cannot be read
+     */
+    static CsvParser open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("File " + file + " is too large to parse");
+            }
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            }
+            bytes.flip();
+            return new CsvParser(file.getFileName().toString(), bytes);
+        }
+    }
+
+    /**
+     * Moves to the next line that is not blank, whatever was left unread of
+     * the current one
+     *
+     * @return {@code false} if there are no more lines
+     */
+    boolean nextLine() {
+        int limit = bytes.limit();
+        int start = lineEnd + 1;
+        while (start < limit) {
+            lineNumber++;
+            int end = start;
+            while (end < limit && bytes.get(end) != '\n') {
+                end++;
+            }
+            lineStart = start;
+            lineEnd = end;
+            position = start;
+            if (contentEnd() > start) {
+                return true;
+            }
+            start = end + 1;
+        }
+        lineEnd = limit;
+        position = limit;
+        return false;
+    }
+
+    /**
+     * Reads a field holding a single character, such as a type tag
+     *
+     * @return the character
+     * @throws ProductManagerException if the field is not one ASCII character
+     */
+    char nextChar() throws ProductManagerException {
+        int end = fieldEnd();
+        if (end - position != 1 || bytes.get(position) < 0) {
+            throw error("expected a single character");
+        }
+        char c = (char) bytes.get(position);
+        skipField(end);
+        return c;
+    }
+
+    int nextInt() throws ProductManagerException {
+        int end = fieldEnd();
+        int i = position;
+        boolean negative = i < end && bytes.get(i) == '-';
+        if (negative || (i < end && bytes.get(i) == '+')) {
+            i++;
+        }
+        if (i == end) {
+            throw error("expected an integer");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                position = i;
+                throw error("expected a digit");
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw error("integer out of range");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw error("integer out of range");
+        }
+        skipField(end);
+        return (int) value;
+    }
+
+    /**
+     * Reads a decimal number exactly, keeping the scale it was written with
+     *
+     * @return the decimal value
+     * @throws ProductManagerException if the field is not a decimal number
+     */
+    BigDecimal nextDecimal() throws ProductManagerException {
+        int end = fieldEnd();
+        int i = position;
+        boolean negative = i < end && bytes.get(i) == '-';
+        if (negative || (i < end && bytes.get(i) == '+')) {
+            i++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                position = i;
+                throw error("expected a decimal number");
+            }
+            if (++digits > MAX_LONG_DIGITS) {
+                // too long for a long, rare enough to go through a string
+                try {
+                    BigDecimal value = new BigDecimal(text(position, end).trim());
+                    skipField(end);
+                    return value;
+                } catch (NumberFormatException ex) {
+                    throw error("expected a decimal number");
+                }
+            }
+            unscaled = unscaled * 10 + digit;
+            if (scale >= 0) {
+                scale++;
+            }
+        }
+        if (digits == 0) {
+            throw error("expected a decimal number");
+        }
+        skipField(end);
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+
+    /**
+     * Reads an ISO local date such as {@code 2022-07-07}
+     *
+     * @return the date
+     * @throws ProductManagerException if the field is not a valid date
+     */
+    LocalDate nextDate() throws ProductManagerException {
+        int end = fieldEnd();
+        if (end - position != 10 || bytes.get(position + 4) != '-' || bytes.get(position + 7) != '-') {
+            throw error("expected a date as yyyy-MM-dd");
+        }
+        try {
+            LocalDate date = LocalDate.of(digits(position, 4), digits(position + 5, 2), digits(position + 8, 2));
+            skipField(end);
+            return date;
+        } catch (DateTimeException ex) {
+            throw error(ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads a field up to the next comma
+     *
+     * @return the field text
+     */
+    String nextField() {
+        int end = fieldEnd();
+        String text = text(position, end);
+        skipField(end);
+        return text;
+    }
+
+    /**
+     * Reads the rest of the line, including any commas
+     *
+     * @return the text up to the end of the line
+     */
+    String nextText() {
+        int end = contentEnd();
+        String text = (position < end) ? text(position, end) : "";
+        position = lineEnd;
+        return text;
+    }
+
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    private int digits(int from, int count) throws ProductManagerException {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                position = i;
+                throw error("expected a digit");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int fieldEnd() {
+        int end = contentEnd();
+        int i = position;
+        while (i < end && bytes.get(i) != ',') {
+            i++;
+        }
+        return i;
+    }
+
+    private void skipField(int end) {
+        // step over the comma, if there is one
+        position = Math.min(end + 1, lineEnd);
+    }
+
+    private int contentEnd() {
+        // a line may end with \r\n
+        return (lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r') ? lineEnd - 1 : lineEnd;
+    }
+
+    private String text(int from, int to) {
+        int length = to - from;
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        bytes.get(from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private ProductManagerException error(String message) {
+        return new ProductManagerException(source + ":" + lineNumber + ":" + (position - lineStart + 1)
+                + ": " + message);
+    }
+}
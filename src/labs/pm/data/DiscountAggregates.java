@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code DiscountAggregates} keeps the discount totals of the catalogue per
+ * rating in cents, updated as products are added and re-rated
+ * <br>
+ * Drink discounts are summed per rating and only count during the happy hour.
+ * Food discounts are summed per best before day and rating, and only the
+ * totals of today count, so a scheduled rollover at midnight moves to the
+ * next day and drops the days that have passed
+ * <br>
+ * Every change publishes an immutable copy of the totals that count today,
+ * so reading the totals takes no lock
+ *
+ * @author richa
+ */
+final class DiscountAggregates {
+
+    private static final Rating[] RATINGS = Rating.values();
+    private static final int PRICE_SCALE = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int[] products = new int[RATINGS.length];
+    private final long[] drinks = new long[RATINGS.length];
+    private final Map<Long, long[]> food = new HashMap<>();
+    private long today = LocalDate.now().toEpochDay();
+    private ScheduledExecutorService rollover;
+    private volatile Totals published = new Totals(new int[RATINGS.length], new long[RATINGS.length], null);
+
+    void add(Product product) {
+        long discount = discount(product);
+        try {
+            lock.lock();
+            update(product.getRating().ordinal(), product instanceof Food, bestBefore(product), discount, 1);
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a product to the totals of its new rating, price or best before
+     * date
+     *
+     * @param previous the product before it was replaced
+     * @param product the new product
+     */
+    void replace(Product previous, Product product) {
+        long previousDiscount = discount(previous);
+        long discount = discount(product);
+        try {
+            lock.lock();
+            update(previous.getRating().ordinal(), previous instanceof Food, bestBefore(previous), previousDiscount, -1);
+            update(product.getRating().ordinal(), product instanceof Food, bestBefore(product), discount, 1);
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the discount of a product from one rating to another, for stores
+     * that keep their products as columns rather than objects
+     *
+     * @param previousRating the ordinal of the rating before
+     * @param rating the ordinal of the new rating
+     * @param isFood whether the product is food
+     * @param bestBefore the best before epoch day of food
+     * @param discount the discount in cents
+     */
+    void rerate(int previousRating, int rating, boolean isFood, long bestBefore, long discount) {
+        try {
+            lock.lock();
+            update(previousRating, isFood, bestBefore, discount, -1);
+            update(rating, isFood, bestBefore, discount, 1);
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        try {
+            lock.lock();
+            Arrays.fill(products, 0);
+            Arrays.fill(drinks, 0);
+            food.clear();
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sums the discounts that apply at a given time of today, for each rating
+     * of at least one product
+     *
+     * @param time the time of day
+     * @return the discount totals per rating
+     */
+    Map<Rating, BigDecimal> getTotals(LocalTime time) {
+        Map<Rating, BigDecimal> totals = new EnumMap<>(Rating.class);
+        boolean happyHour = Drink.isHappyHour(time);
+        Totals current = published;
+        for (int i = 0; i < RATINGS.length; i++) {
+            if (current.products[i] > 0) {
+                long total = (current.foodToday == null) ? 0 : current.foodToday[i];
+                totals.put(RATINGS[i], BigDecimal.valueOf(happyHour ? total + current.drinks[i] : total, PRICE_SCALE));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Starts rolling the food totals over to the next day at every midnight
+     */
+    void startRollover() {
+        rollover = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "discount-rollover");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleRollover();
+    }
+
+    void stopRollover() {
+        if (rollover != null) {
+            rollover.shutdownNow();
+        }
+    }
+
+    /**
+     * The full discount of a product in cents
+     *
+     * @param product the product
+     * @return the discount in cents
+     * @throws IllegalArgumentException if the discount does not fit in cents
+     */
+    static long discount(Product product) {
+        try {
+            return product.getFullDiscount().unscaledValue().longValueExact();
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Discount of product " + product.getId()
+                    + " cannot be counted in cents", ex);
+        }
+    }
+
+    private void scheduleRollover() {
+        LocalDateTime now = LocalDateTime.now();
+        long delay = Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay()).toMillis();
+        rollover.schedule(() -> {
+            rollover();
+            scheduleRollover();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void rollover() {
+        try {
+            lock.lock();
+            today = LocalDate.now().toEpochDay();
+            food.keySet().removeIf(day -> day < today);
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the caller holds the lock
+    private void publish() {
+        long[] foodToday = food.get(today);
+        published = new Totals(products.clone(), drinks.clone(), (foodToday == null) ? null : foodToday.clone());
+    }
+
+    // the caller holds the lock
+    private void update(int rating, boolean isFood, long bestBefore, long discount, int sign) {
+        products[rating] += sign;
+        if (isFood) {
+            if (bestBefore >= today) {
+                food.computeIfAbsent(bestBefore, day -> new long[RATINGS.length])[rating] += sign * discount;
+            }
+        } else {
+            drinks[rating] += sign * discount;
+        }
+    }
+
+    private static long bestBefore(Product product) {
+        return (product instanceof Food) ? product.getBestBefore().toEpochDay() : 0;
+    }
+
+    /**
+     * The product counts and discount totals per rating that count today
+     */
+    private static final class Totals {
+
+        private final int[] products;
+        private final long[] drinks;
+        private final long[] foodToday;
+
+        private Totals(int[] products, long[] drinks, long[] foodToday) {
+            this.products = products;
+            this.drinks = drinks;
+            this.foodToday = foodToday;
+        }
+    }
+}
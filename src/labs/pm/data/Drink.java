@@ -32,9 +32,20 @@ public final class Drink extends Product {
 
     @Override
     public BigDecimal getDiscount() {
-        LocalTime now = LocalTime.now();
-        return (now.isAfter(LocalTime.of(17, 30)) && now.isBefore(LocalTime.of(18, 30))) ?
-                super.getDiscount() : BigDecimal.ZERO;
+//        LocalTime now = LocalTime.now();
+//        return (now.isAfter(LocalTime.of(17, 30)) && now.isBefore(LocalTime.of(18, 30))) ?
+//                super.getDiscount() : BigDecimal.ZERO;
+        return isHappyHour(LocalTime.now()) ? super.getDiscount() : BigDecimal.ZERO;
+    }
+
+    /**
+     * Drinks are discounted between 17:30 and 18:30
+     *
+     * @param time the time of day
+     * @return {@code true} if drinks are discounted at that time
+     */
+    static boolean isHappyHour(LocalTime time) {
+        return time.isAfter(LocalTime.of(17, 30)) && time.isBefore(LocalTime.of(18, 30));
     }
 
     @Override
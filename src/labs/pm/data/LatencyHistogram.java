@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code LatencyHistogram} counts latencies in buckets that grow with the
+ * value, 32 buckets for each power of two, so that percentiles are accurate to
+ * about 3% over the whole range from nanoseconds to hours
+ * <br>
+ * Latencies can be recorded by many threads at once. The buckets are striped
+ * by thread and the count, total and maximum are striped adders, so threads
+ * recording the same latency seldom write the same memory. Latencies above
+ * about 18 minutes are counted in the last bucket
+ *
+ * @author richa
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(8,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency in nanoseconds, negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucket(Math.min(value, (1L << MAX_BITS) - 1)));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Duration getMean() {
+        long n = count.sum();
+        return Duration.ofNanos((n == 0) ? 0 : total.sum() / n);
+    }
+
+    public Duration getMax() {
+        return Duration.ofNanos(max.get());
+    }
+
+    /**
+     * Finds the latency that the given percentage of the recorded latencies
+     * did not exceed
+     *
+     * @param percentile the percentage, for example 99.9
+     * @return the latency, rounded up to the top of its bucket
+     */
+    public Duration getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            snapshot[i % BUCKETS] += counts.get(i);
+        }
+        for (long bucketCount : snapshot) {
+            n += bucketCount;
+        }
+        if (n == 0) {
+            return Duration.ZERO;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Duration.ofNanos(Math.min(highestValue(i), max.get()));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets all the recorded latencies
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the top bits below the highest one pick the bucket within its power of two
+        int highest = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = highest - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return getCount() + " recorded, p50 " + getPercentile(50).toNanos() / 1000 + " us, p99 "
+                + getPercentile(99).toNanos() / 1000 + " us, p99.9 " + getPercentile(99.9).toNanos() / 1000
+                + " us, max " + getMax().toNanos() / 1000 + " us";
+    }
+}
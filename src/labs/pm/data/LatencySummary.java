@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+/**
+ * {@code LatencySummary} gives the count and the percentiles of the latencies
+ * recorded for one operation, in nanoseconds
+ *
+ * @author richa
+ */
+public final class LatencySummary {
+
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    private LatencySummary(long count, long mean, long p50, long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    static LatencySummary of(LatencyHistogram histogram) {
+        return new LatencySummary(histogram.getCount(), histogram.getMean().toNanos(),
+                histogram.getPercentile(50).toNanos(), histogram.getPercentile(99).toNanos(),
+                histogram.getPercentile(99.9).toNanos(), histogram.getMax().toNanos());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanNanos() {
+        return mean;
+    }
+
+    public long getP50Nanos() {
+        return p50;
+    }
+
+    public long getP99Nanos() {
+        return p99;
+    }
+
+    public long getP999Nanos() {
+        return p999;
+    }
+
+    public long getMaxNanos() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return count + " times, mean " + mean / 1000 + " us, p50 " + p50 / 1000 + " us, p99 "
+                + p99 / 1000 + " us, p99.9 " + p999 / 1000 + " us, max " + max / 1000 + " us";
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.time.Duration;
+
+/**
+ * {@code LoadStatistics} describes the outcome of loading the catalogue from
+ * the data and reports folders
+ *
+ * @author richa
+ */
+public final class LoadStatistics {
+
+    private final int products;
+    private final long reviews;
+    private final int failedFiles;
+    private final int parallelism;
+    private final Duration elapsed;
+
+    LoadStatistics(int products, long reviews, int failedFiles, int parallelism, Duration elapsed) {
+        this.products = products;
+        this.reviews = reviews;
+        this.failedFiles = failedFiles;
+        this.parallelism = parallelism;
+        this.elapsed = elapsed;
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    public long getReviews() {
+        return reviews;
+    }
+
+    public int getFailedFiles() {
+        return failedFiles;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "Loaded " + products + " products and " + reviews + " reviews in "
+                + elapsed.toMillis() + " ms using " + parallelism + " threads, "
+                + failedFiles + " files failed";
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@code MessageTemplate} is a {@link java.text.MessageFormat MessageFormat}
+ * pattern parsed once into literal text and argument indexes
+ * <br>
+ * Only plain arguments such as {@code {0}} are supported, the values are
+ * formatted by the caller. Templates are immutable and can be shared between
+ * threads
+ *
+ * @author richa
+ */
+final class MessageTemplate {
+
+    private final String[] literals;
+    private final int[] arguments;
+    private final String tail;
+
+    private MessageTemplate(String[] literals, int[] arguments, String tail) {
+        this.literals = literals;
+        this.arguments = arguments;
+        this.tail = tail;
+    }
+
+    /**
+     * Parses a pattern, following the quoting rules of
+     * {@link java.text.MessageFormat MessageFormat}
+     *
+     * @param pattern the pattern to parse
+     * @return the parsed template
+     * @throws IllegalArgumentException if the pattern has an unterminated or
+     * a typed argument
+     */
+    static MessageTemplate compile(String pattern) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> arguments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    literal.append('\'');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                int end = pattern.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unmatched braces in pattern " + pattern);
+                }
+                try {
+                    arguments.add(Integer.parseInt(pattern.substring(i + 1, end).trim()));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Unsupported argument in pattern " + pattern, ex);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                i = end;
+            } else {
+                literal.append(c);
+            }
+        }
+        return new MessageTemplate(literals.toArray(String[]::new),
+                arguments.stream().mapToInt(Integer::intValue).toArray(),
+                literal.toString());
+    }
+
+    /**
+     * @return the number of arguments in the template
+     */
+    int size() {
+        return arguments.length;
+    }
+
+    /**
+     * @param part the position of an argument in the template
+     * @return the literal text before that argument
+     */
+    String literal(int part) {
+        return literals[part];
+    }
+
+    /**
+     * @param part the position of an argument in the template
+     * @return the index of the value the argument refers to
+     */
+    int argument(int part) {
+        return arguments[part];
+    }
+
+    /**
+     * @return the literal text after the last argument
+     */
+    String tail() {
+        return tail;
+    }
+}
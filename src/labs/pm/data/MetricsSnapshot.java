@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+/**
+ * {@code MetricsSnapshot} holds the metrics of a product manager at one point
+ * in time: the size of the catalogue, the latencies of its operations and
+ * locks, the bytes of reports written and how long the catalogue took to
+ * load, dump and restore the last time
+ *
+ * @author richa
+ */
+public final class MetricsSnapshot {
+
+    private final int products;
+    private final long reviews;
+    private final long reportBytesWritten;
+    private final long lastLoadMillis;
+    private final long lastDumpMillis;
+    private final long lastRestoreMillis;
+    private final LatencySummary create;
+    private final LatencySummary review;
+    private final LatencySummary find;
+    private final LatencySummary report;
+    private final LatencySummary discounts;
+    private final LatencySummary readLockWait;
+    private final LatencySummary readLockHold;
+    private final LatencySummary writeLockWait;
+    private final LatencySummary writeLockHold;
+
+    MetricsSnapshot(ProductManagerMetrics metrics) {
+        products = metrics.getProducts();
+        reviews = metrics.getReviews();
+        reportBytesWritten = metrics.getReportBytesWritten();
+        lastLoadMillis = metrics.lastLoad / 1_000_000;
+        lastDumpMillis = metrics.lastDump / 1_000_000;
+        lastRestoreMillis = metrics.lastRestore / 1_000_000;
+        create = LatencySummary.of(metrics.create);
+        review = LatencySummary.of(metrics.review);
+        find = LatencySummary.of(metrics.find);
+        report = LatencySummary.of(metrics.report);
+        discounts = LatencySummary.of(metrics.discounts);
+        readLockWait = LatencySummary.of(metrics.readLockWait);
+        readLockHold = LatencySummary.of(metrics.readLockHold);
+        writeLockWait = LatencySummary.of(metrics.writeLockWait);
+        writeLockHold = LatencySummary.of(metrics.writeLockHold);
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    public long getReviews() {
+        return reviews;
+    }
+
+    public long getReportBytesWritten() {
+        return reportBytesWritten;
+    }
+
+    public long getLastLoadMillis() {
+        return lastLoadMillis;
+    }
+
+    public long getLastDumpMillis() {
+        return lastDumpMillis;
+    }
+
+    public long getLastRestoreMillis() {
+        return lastRestoreMillis;
+    }
+
+    public LatencySummary getCreate() {
+        return create;
+    }
+
+    public LatencySummary getReview() {
+        return review;
+    }
+
+    public LatencySummary getFind() {
+        return find;
+    }
+
+    public LatencySummary getReport() {
+        return report;
+    }
+
+    public LatencySummary getDiscounts() {
+        return discounts;
+    }
+
+    public LatencySummary getReadLockWait() {
+        return readLockWait;
+    }
+
+    public LatencySummary getReadLockHold() {
+        return readLockHold;
+    }
+
+    public LatencySummary getWriteLockWait() {
+        return writeLockWait;
+    }
+
+    public LatencySummary getWriteLockHold() {
+        return writeLockHold;
+    }
+
+    @Override
+    public String toString() {
+        return products + " products, " + reviews + " reviews, " + reportBytesWritten + " report bytes written"
+                + "\nlast load " + lastLoadMillis + " ms, dump " + lastDumpMillis + " ms, restore "
+                + lastRestoreMillis + " ms"
+                + "\ncreate: " + create
+                + "\nreview: " + review
+                + "\nfind: " + find
+                + "\nreport: " + report
+                + "\ndiscounts: " + discounts
+                + "\nread lock wait: " + readLockWait
+                + "\nread lock hold: " + readLockHold
+                + "\nwrite lock wait: " + writeLockWait
+                + "\nwrite lock hold: " + writeLockHold;
+    }
+}
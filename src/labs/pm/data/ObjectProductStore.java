@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalTime;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code ObjectProductStore} keeps each product as an immutable
+ * {@link Product} object, indexed by id, price, rating and best before date,
+ * with discount totals maintained as products are added and re-rated
+ *
+ * @author richa
+ */
+final class ObjectProductStore implements ProductStore {
+
+    private final IntObjectMap<Product> products = new IntObjectMap<>();
+    private final IntObjectMap<RatingAggregate> ratings = new IntObjectMap<>();
+    private final ProductIndexes indexes = new ProductIndexes();
+    private final DiscountAggregates discounts = new DiscountAggregates();
+    private final AtomicLong versions = new AtomicLong();
+
+    ObjectProductStore() {
+        discounts.startRollover();
+    }
+
+    @Override
+    public Product get(int id) {
+        return products.get(id);
+    }
+
+    @Override
+    public boolean add(Product product, RatingAggregate aggregate) {
+        if (products.get(product.getId()) != null) {
+            return false;
+        }
+        // counted first, a discount that does not fit in cents adds nothing
+        discounts.add(product);
+        aggregate.setVersion(versions.incrementAndGet());
+        products.put(product.getId(), product);
+        ratings.put(product.getId(), aggregate);
+        indexes.add(product);
+        return true;
+    }
+
+    @Override
+    public void put(Product product, RatingAggregate aggregate) {
+        Product previous = products.get(product.getId());
+        if (previous == null) {
+            add(product, aggregate);
+            return;
+        }
+        discounts.replace(previous, product);
+        aggregate.setVersion(versions.incrementAndGet());
+        products.put(product.getId(), product);
+        ratings.put(product.getId(), aggregate);
+        indexes.replace(previous, product);
+    }
+
+    @Override
+    public Product addRatings(int id, long ratingSum, int ratingCount) {
+        Product product = products.get(id);
+        RatingAggregate aggregate = ratings.get(id);
+        Rating newRating = aggregate.add(ratingSum, ratingCount);
+        Product rated = product;
+        if (newRating != product.getRating()) {
+            rated = product.applyRating(newRating);
+            products.put(id, rated);
+            discounts.replace(product, rated);
+            indexes.replace(product, rated);
+        }
+        // the version is published last, after the product it stands for
+        aggregate.setVersion(versions.incrementAndGet());
+        return rated;
+    }
+
+    @Override
+    public long getVersion(int id) {
+        RatingAggregate aggregate = ratings.get(id);
+        return (aggregate == null) ? -1 : aggregate.getVersion();
+    }
+
+    @Override
+    public int size() {
+        return products.size();
+    }
+
+    @Override
+    public void clear() {
+        products.clear();
+        ratings.clear();
+        indexes.clear();
+        discounts.clear();
+    }
+
+    @Override
+    public Iterator<Product> iterator() {
+        return products.values();
+    }
+
+    @Override
+    public List<Product> query(ProductQuery query, Product after, int limit) {
+        return indexes.query(query, after, limit);
+    }
+
+    @Override
+    public Map<Rating, BigDecimal> getDiscountTotals(LocalTime time) {
+        return discounts.getTotals(time);
+    }
+
+    @Override
+    public void close() {
+        discounts.stopRollover();
+    }
+}
@@ -96,6 +96,15 @@ public abstract class Product implements Rateable<Product>, Serializable {
      * @return a {@link java.math.BigDecimal BigDecimal} value of the discount
      */
     public BigDecimal getDiscount() {
+        return getFullDiscount();
+    }
+
+    /**
+     * Calculates the discount regardless of whether it applies right now
+     *
+     * @return a {@link java.math.BigDecimal BigDecimal} value of the discount
+     */
+    BigDecimal getFullDiscount() {
         return price.multiply(DISCOUNT_RATE).setScale(2, RoundingMode.HALF_UP);
     }
 
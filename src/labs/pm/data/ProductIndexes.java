@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * {@code ProductIndexes} keeps the products of the catalogue sorted by price,
+ * rating and best before date, to answer {@link ProductQuery} ranges and
+ * orders without sorting the whole catalogue
+ * <br>
+ * The indexes are concurrent skip lists, so products can be re-rated while a
+ * query runs. A query sees each product at most once, in the state it had
+ * before or after a concurrent change
+ *
+ * @author richa
+ */
+final class ProductIndexes {
+
+    private final SortedIndex<BigDecimal> prices = new SortedIndex<>(Product::getPrice);
+    private final SortedIndex<Rating> ratings = new SortedIndex<>(Product::getRating);
+    // drinks are best before today whatever the day, so only food is indexed by date
+    private final SortedIndex<LocalDate> food = new SortedIndex<>(Product::getBestBefore);
+    private final ConcurrentSkipListMap<Integer, Product> drinks = new ConcurrentSkipListMap<>();
+
+    void add(Product product) {
+        prices.add(product);
+        ratings.add(product);
+        if (product instanceof Food) {
+            food.add(product);
+        } else {
+            drinks.put(product.getId(), product);
+        }
+    }
+
+    /**
+     * Replaces a product with its re-rated copy, or with the product of the
+     * same id reloaded from its file
+     *
+     * @param previous the product before it was re-rated or reloaded
+     * @param product the re-rated or reloaded product
+     */
+    void replace(Product previous, Product product) {
+        prices.replace(previous, product);
+        ratings.replace(previous, product);
+        if (product instanceof Food) {
+            if (previous instanceof Food) {
+                food.replace(previous, product);
+            } else {
+                food.add(product);
+                drinks.remove(product.getId());
+            }
+        } else {
+            drinks.put(product.getId(), product);
+            if (previous instanceof Food) {
+                food.remove(previous);
+            }
+        }
+    }
+
+    void clear() {
+        prices.clear();
+        ratings.clear();
+        food.clear();
+        drinks.clear();
+    }
+
+    /**
+     * Runs a query from where a previous page of it ended, scanning the index
+     * of its order, or else the index of one of its ranges
+     * <br>
+     * Queries without a comparator are paged in the order of the index they
+     * scan, and resume right after the last product in that index. Queries
+     * with a comparator scan their candidates again and keep the products
+     * that come after the last one
+     *
+     * @param query the query
+     * @param after the last product of the previous page or {@code null}
+     * @param limit the maximum number of products
+     * @return the matching products in order
+     */
+    List<Product> query(ProductQuery query, Product after, int limit) {
+        ProductQuery.Order order = scanOrder(query);
+        boolean descending = (query.getOrder() != null) && query.isDescending();
+        // a comparator orders the candidates itself and skips those up to the last product
+        Iterator<Product> candidates = scan(order, query, descending, (query.getSorter() == null) ? after : null);
+        // a re-rated product moves within the rating index, so that scan may meet it twice
+        return query.select(candidates, after, limit, order == ProductQuery.Order.RATING);
+    }
+
+    // the order of the query, or else the index of one of its ranges
+    private static ProductQuery.Order scanOrder(ProductQuery query) {
+        if (query.getOrder() != null) {
+            return query.getOrder();
+        }
+        if (query.getMinPrice() != null || query.getMaxPrice() != null) {
+            return ProductQuery.Order.PRICE;
+        }
+        if (query.getBestBeforeFrom() != null || query.getBestBeforeTo() != null) {
+            return ProductQuery.Order.BEST_BEFORE;
+        }
+        if (query.getMinRating() != null || query.getMaxRating() != null) {
+            return ProductQuery.Order.RATING;
+        }
+        return ProductQuery.Order.PRICE;
+    }
+
+    private Iterator<Product> scan(ProductQuery.Order order, ProductQuery query, boolean descending, Product after) {
+        switch (order) {
+            case PRICE:
+                return prices.scan(query.getMinPrice(), query.getMaxPrice(), descending, after);
+            case RATING:
+                return ratings.scan(query.getMinRating(), query.getMaxRating(), descending, after);
+            default:
+                return scanBestBefore(query.getBestBeforeFrom(), query.getBestBeforeTo(), descending, after);
+        }
+    }
+
+    private Iterator<Product> scanBestBefore(LocalDate from, LocalDate to, boolean descending, Product after) {
+        LocalDate today = LocalDate.now();
+        if ((from != null && today.isBefore(from)) || (to != null && today.isAfter(to))) {
+            return food.scan(from, to, descending, after);
+        }
+        // drinks come after the food that is best before today
+        Product afterFood = (after instanceof Food) ? after : null;
+        Iterator<Product> todayAndBefore = (after instanceof Drink && !descending)
+                ? Collections.emptyIterator() : food.scan(from, today, descending, afterFood);
+        Iterator<Product> later = (after instanceof Drink && descending)
+                ? Collections.emptyIterator() : food.scan(today.plusDays(1), to, descending, afterFood);
+        Iterator<Product> drinksToday;
+        if (after instanceof Drink) {
+            drinksToday = (descending ? drinks.headMap(after.getId(), false).descendingMap()
+                    : drinks.tailMap(after.getId(), false)).values().iterator();
+        } else if (after == null || descending == after.getBestBefore().isAfter(today)) {
+            drinksToday = (descending ? drinks.descendingMap() : drinks).values().iterator();
+        } else {
+            drinksToday = Collections.emptyIterator();
+        }
+        List<Iterator<Product>> parts = new ArrayList<>(List.of(todayAndBefore, drinksToday, later));
+        if (descending) {
+            Collections.reverse(parts);
+        }
+        return new Concatenation(parts.iterator());
+    }
+
+    /**
+     * Products sorted by one of their values and then by id
+     */
+    private static final class SortedIndex<T extends Comparable<? super T>> {
+
+        private final ConcurrentSkipListMap<Key<T>, Product> entries = new ConcurrentSkipListMap<>();
+        private final Function<Product, T> value;
+
+        private SortedIndex(Function<Product, T> value) {
+            this.value = value;
+        }
+
+        private void add(Product product) {
+            entries.put(key(product), product);
+        }
+
+        private void replace(Product previous, Product product) {
+            Key<T> key = key(product);
+            Key<T> previousKey = key(previous);
+            // adding before removing lets a concurrent scan see both, but never neither
+            entries.put(key, product);
+            if (key.compareTo(previousKey) != 0) {
+                entries.remove(previousKey);
+            }
+        }
+
+        private void remove(Product product) {
+            entries.remove(key(product));
+        }
+
+        private void clear() {
+            entries.clear();
+        }
+
+        /**
+         * Scans the products whose value is within a range, bounds included
+         *
+         * @param from the lowest value or {@code null}
+         * @param to the highest value or {@code null}
+         * @param descending {@code true} to scan from the highest value
+         * @param after the product to start after or {@code null}
+         * @return the products
+         */
+        private Iterator<Product> scan(T from, T to, boolean descending, Product after) {
+            Key<T> low = (from == null) ? null : new Key<>(from, Integer.MIN_VALUE);
+            Key<T> high = (to == null) ? null : new Key<>(to, Integer.MAX_VALUE);
+            boolean lowInclusive = true;
+            boolean highInclusive = true;
+            if (after != null) {
+                Key<T> start = key(after);
+                if (!descending && (low == null || start.compareTo(low) >= 0)) {
+                    low = start;
+                    lowInclusive = false;
+                } else if (descending && (high == null || start.compareTo(high) <= 0)) {
+                    high = start;
+                    highInclusive = false;
+                }
+            }
+            ConcurrentNavigableMap<Key<T>, Product> range;
+            if (low != null && high != null) {
+                if (low.compareTo(high) > 0) {
+                    return Collections.emptyIterator();
+                }
+                range = entries.subMap(low, lowInclusive, high, highInclusive);
+            } else if (low != null) {
+                range = entries.tailMap(low, lowInclusive);
+            } else if (high != null) {
+                range = entries.headMap(high, highInclusive);
+            } else {
+                range = entries;
+            }
+            return (descending ? range.descendingMap() : range).values().iterator();
+        }
+
+        private Key<T> key(Product product) {
+            return new Key<>(value.apply(product), product.getId());
+        }
+    }
+
+    private static final class Key<T extends Comparable<? super T>> implements Comparable<Key<T>> {
+
+        private final T value;
+        private final int id;
+
+        private Key(T value, int id) {
+            this.value = value;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key<T> other) {
+            int order = value.compareTo(other.value);
+            return (order != 0) ? order : Integer.compare(id, other.id);
+        }
+    }
+
+    private static final class Concatenation implements Iterator<Product> {
+
+        private final Iterator<Iterator<Product>> parts;
+        private Iterator<Product> current = Collections.emptyIterator();
+
+        private Concatenation(Iterator<Iterator<Product>> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && parts.hasNext()) {
+                current = parts.next();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Product next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
+}
@@ -16,42 +16,75 @@
  */
 package labs.pm.data;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.text.FieldPosition;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.time.format.FormatStyle;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -62,11 +95,57 @@ public class ProductManager {
 //    private Product product; // current Product
 //    //private Review review;
 //    private Review[] reviews = new Review[5];
-    private Map<Product, List<Review>> products = new ConcurrentHashMap<>();
+    // a sharded catalogue routes to its shards and keeps no products, reviews or reports itself
+    private final ProductStore store;
+    private final ReviewStore reviews;
+    // the reviews store when reviews are loaded lazily, otherwise null
+    private final CachedReviewStore cachedReviews;
+    private final boolean lazyReviews;
+    private final ReviewIndex reviewIndex;
+    private final Thread reviewCacheShutdown;
 
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock writeLock = lock.writeLock();
-    private final Lock readLock = lock.readLock();
+    // the write lock is taken with all the lock stripes to add or replace
+    // products; reviews and reports take only the stripe of their product, so
+    // they exclude the writers without sharing a lock with each other; reads
+    // of products, queries and discounts run without any lock and are
+    // validated against the stamp of the write lock, and only read again
+    // under the read lock when a writer got in between
+    private final ProductManagerMetrics metrics;
+    private final StampedLock lock = new StampedLock();
+    private final Lock writeLock;
+    private final TimedLock readLock;
+    private static final int LOCK_STRIPES = 64;
+    private static final int LISTING_PAGE_SIZE = 256;
+    // batch items applied under one acquisition of the catalogue lock
+    private static final int BATCH_CHUNK = 4096;
+    // product files read at the same time when loading on virtual threads
+    private static final int VIRTUAL_LOAD_PARALLELISM = 64;
+    private static final AtomicInteger replicaCount = new AtomicInteger();
+    private final Lock[] stripes = new Lock[LOCK_STRIPES];
+
+    // products are partitioned by id into shards, each with its own stores,
+    // locks and report cache; the catalogue routes point operations to the
+    // shard of the product and gathers catalogue wide reads from all shards
+    private final int shardCount;
+    private final int shardIndex;
+    // the shards of a sharded catalogue, otherwise null
+    private final ProductManager[] shards;
+    // the shards, or this product manager when it is not sharded
+    private final List<ProductManager> partitions;
+    // runs the writes of a shard on one thread when shard.writer is set, otherwise null
+    private final ExecutorService writer;
+
+    // the changes of the catalogue are published to its replicas, which are
+    // read only copies that apply them in order on a thread of their own and
+    // serve reads no staler than replica.max.staleness
+    private final ChangeStream changes;
+    // the catalogue a replica copies, otherwise null
+    private final ProductManager primary;
+    // the changes delivered to a replica, otherwise null
+    private final ChangeStream.Subscription replication;
+    private final long maxStalenessNanos;
+    // the last change a replica copied with the catalogue, so it skips that change when delivered
+    private long copiedSequence;
 
 //    private Locale locale;
 //    private ResourceBundle resources;
@@ -82,34 +161,203 @@ public class ProductManager {
     private static final Logger logger = Logger.getLogger(ProductManager.class.getName());
 
     private final ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
-    private final MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
-    private final MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
-    private final Path reportsFolder = Path.of(config.getString("reports.folder"));
-    private final Path dataFolder = Path.of(config.getString("data.folder"));
-    private final Path tempFolder = Path.of(config.getString("temp.folder"));
-
-    private static final ProductManager pm = new ProductManager();
-
-//    public ProductManager(Locale locale) {
-////        this.locale = locale;
-////
-////        resources = ResourceBundle.getBundle("labs.pm.data.resources", locale);
-////        dateFormat = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale);
-////        moneyFormat = NumberFormat.getCurrencyInstance(locale);
-//        this(locale.toLanguageTag());
-//        
-//    }
+    private final Map<String, String> settings;
+    private final Path reportsFolder;
+    private final Path dataFolder;
+    private final Path tempFolder;
+    private final int loadParallelism;
+    private final boolean virtualThreads;
+    private volatile LoadStatistics loadStatistics;
+    private ReviewJournal journal;
+    private Thread journalShutdown;
+    // the snapshot the journal is replayed onto at startup, until the replay is done
+    private Checkpoint checkpoint;
+    private CatalogueWatcher watcher;
+    private final ReportService reportService;
+    private final ReportCache reportCache;
+    private ObjectName mbeanName;
+
     private ProductManager() {
-//        changeLocale(languageTag);
-        loadAllData();
+        this(Map.of());
+    }
+
+    /**
+     * Creates a product manager with its own catalogue, loaded from the
+     * folders in its settings, for example a benchmark fixture
+     *
+     * @param settings settings that take precedence over system properties
+     * and the config bundle
+     */
+    ProductManager(Map<String, String> settings) {
+        this(settings, null, 0, null);
+    }
+
+    /**
+     * Creates a product manager, or one shard of a sharded product manager
+     * <br>
+     * With {@code catalogue.shards} above one, the product manager creates
+     * its shards, loads the catalogue and installs the products of each shard
+     * in it. The shards share the journal, metrics and report writers of the
+     * product manager, and split its report and review cache capacities
+     * <br>
+     * A replica copies the catalogue of its primary instead of loading it,
+     * into one shard, and has no journal of its own
+     *
+     * @param settings settings that take precedence over system properties
+     * and the config bundle
+     * @param router the product manager the shard belongs to, or
+     * {@code null}
+     * @param shardIndex the index of the shard
+     * @param primary the product manager a replica copies, or {@code null}
+     */
+    private ProductManager(Map<String, String> settings, ProductManager router, int shardIndex,
+            ProductManager primary) {
+        this.settings = settings;
+        this.shardIndex = shardIndex;
+        this.primary = primary;
+        if (primary != null) {
+            shardCount = 1;
+        } else {
+            shardCount = (router == null) ? Integer.parseInt(setting("catalogue.shards", "1")) : router.shardCount;
+        }
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A catalogue needs at least one shard, not " + shardCount);
+        }
+        boolean sharded = router == null && shardCount > 1;
+        metrics = (router == null) ? new ProductManagerMetrics(this::productCount) : router.metrics;
+        changes = (router == null) ? new ChangeStream() : router.changes;
+        maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(setting("replica.max.staleness", "1000")));
+        writeLock = new TimedLock(new StripedWriteLock(lock.asWriteLock(), stripes), metrics.writeLockWait,
+                metrics.writeLockHold, false);
+        readLock = new TimedLock(lock.asReadLock(), metrics.readLockWait, metrics.readLockHold, true);
+        reportsFolder = Path.of(setting("reports.folder", "report"));
+        dataFolder = Path.of(setting("data.folder", "data"));
+        tempFolder = Path.of(setting("temp.folder", "temp"));
+        loadParallelism = Integer.parseInt(setting("load.parallelism", "0"));
+        virtualThreads = Boolean.parseBoolean(setting("virtual.threads", "false")) && VirtualThreads.isSupported();
+        if (router == null && Boolean.parseBoolean(setting("virtual.threads", "false")) && !virtualThreads) {
+            logger.log(Level.WARNING, "Virtual threads are not supported, using platform threads");
+        }
+        int reportQueueCapacity = Integer.parseInt(setting("report.queue.capacity", "1000"));
+        if (router != null) {
+            reportService = router.reportService;
+        } else {
+            reportService = virtualThreads ? new ReportService(reportQueueCapacity)
+                    : new ReportService(Integer.parseInt(setting("report.threads", "2")), reportQueueCapacity);
+        }
+        // a replica keeps all the reviews it copies in memory
+        lazyReviews = primary == null && Boolean.parseBoolean(setting("reviews.lazy", "false"));
+        if (primary != null) {
+            reviewIndex = null;
+        } else {
+            reviewIndex = (router == null)
+                    ? ReviewIndex.read(reportsFolder.resolve(setting("ratings.index.file", "ratings.index")))
+                    : router.reviewIndex;
+        }
+        if (sharded) {
+            reportCache = null;
+            store = null;
+            reviews = null;
+            cachedReviews = null;
+            reviewCacheShutdown = null;
+        } else {
+            // each shard caches its share of the reports and reviews, rounded up
+            int reportCacheSize = Integer.parseInt(setting("report.cache.size", "1000"));
+            reportCache = new ReportCache((reportCacheSize + shardCount - 1) / shardCount);
+            store = createStore(setting("catalogue.store", "objects"));
+            if (lazyReviews) {
+                long reviewCacheSize = Long.parseLong(setting("reviews.cache.size", "100000"));
+                cachedReviews = new CachedReviewStore(reviewIndex, new ReviewFilesInFolder(),
+                        (reviewCacheSize + shardCount - 1) / shardCount);
+                reviews = cachedReviews;
+                reviewCacheShutdown = new Thread(cachedReviews::flush, "review-cache-shutdown");
+                Runtime.getRuntime().addShutdownHook(reviewCacheShutdown);
+            } else {
+                cachedReviews = null;
+                reviews = new CompactReviewStore(Boolean.parseBoolean(setting("review.slab.direct", "false")));
+                reviewCacheShutdown = null;
+            }
+        }
+        if (primary == null && !sharded && Boolean.parseBoolean(setting("shard.writer", "false"))) {
+            writer = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "shard-writer-" + shardIndex);
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            writer = null;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        if (sharded) {
+            shards = new ProductManager[shardCount];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new ProductManager(settings, this, i, null);
+            }
+            partitions = Arrays.asList(shards);
+        } else {
+            shards = null;
+            partitions = List.of(this);
+        }
+        if (primary != null) {
+            replication = primary.replicate(this);
+        } else {
+            replication = null;
+            if (router == null) {
+                openJournal();
+                loadAllData();
+                replayJournal();
+                startWatcher();
+                registerMBean();
+            }
+        }
+
+    }
 
+    /**
+     * Stops the background threads of a product manager that is no longer
+     * used, after writing the reviews still waiting for the journal
+     */
+    void shutdown() {
+        if (replication != null) {
+            replication.cancel();
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (shards != null) {
+            for (ProductManager shard : shards) {
+                shard.shutdown();
+            }
+        }
+        if (writer != null) {
+            writer.shutdown();
+        }
+        reportService.shutdown();
+        if (store != null) {
+            store.close();
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException ex) {
+                logger.log(Level.WARNING, "Error unregistering metrics " + ex.getMessage());
+            }
+        }
+        // the shards write to the journal of the catalogue, which closes it
+        if (journalShutdown != null) {
+            Runtime.getRuntime().removeShutdownHook(journalShutdown);
+            journal.close();
+        }
+        if (cachedReviews != null) {
+            Runtime.getRuntime().removeShutdownHook(reviewCacheShutdown);
+            cachedReviews.flush();
+        }
     }
 
-//    public void changeLocale(String languageTag) {
-//        formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
-//    }
     public static ProductManager getInstance() {
-        return pm;
+        return Holder.pm;
     }
 
     public static Set<String> getSupportedLocales() {
@@ -117,25 +365,30 @@ public class ProductManager {
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
-        Product product = null;
-        try {
-            writeLock.lock();
-            product = new Food(id, name, price, rating, bestBefore);
-            products.putIfAbsent(product, new ArrayList<>());
-        } catch (Exception ex) {
-            logger.log(Level.INFO, "Error adding product" + ex.getMessage());
-        } finally {
-            writeLock.unlock();
-        }
+        long start = System.nanoTime();
+        ProductManager shard = shardFor(id);
+        Product product = shard.write(() -> shard.storeProduct(() -> new Food(id, name, price, rating, bestBefore)));
+        metrics.create.record(ProductManagerMetrics.since(start));
         return product;
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating) {
+        long start = System.nanoTime();
+        ProductManager shard = shardFor(id);
+        Product product = shard.write(() -> shard.storeProduct(() -> new Drink(id, name, price, rating)));
+        metrics.create.record(ProductManagerMetrics.since(start));
+        return product;
+    }
+
+    // adds a product to this shard, or returns null if it cannot be created
+    private Product storeProduct(Supplier<Product> create) {
         Product product = null;
         try {
             writeLock.lock();
-            product = new Drink(id, name, price, rating);
-            products.putIfAbsent(product, new ArrayList<>());
+            product = create.get();
+            if (store.add(product, new RatingAggregate())) {
+                changes.productCreated(product);
+            }
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error adding product" + ex.getMessage());
         } finally {
@@ -144,13 +397,13 @@ public class ProductManager {
         return product;
     }
 
-    private Product reviewProduct(Product product, Rating rating, String comments) {
+    // the caller holds the stripe of the product
+    private Product addReview(int id, Rating rating, String comments) {
 //        if (reviews[reviews.length - 1] != null) {
 //            reviews = Arrays.copyOf(reviews, reviews.length + 5);
 //        }
-        List<Review> reviews = products.get(product);
-        products.remove(product, reviews);
-        reviews.add(new Review(rating, comments));
+        reviews.add(id, rating, comments);
+        metrics.reviewAdded();
 //        int sum = 0;
 ////        int i = 0;
 //        for (Review review : reviews) {
@@ -167,31 +420,237 @@ public class ProductManager {
 ////        }
 //        //review = new Review(rating, comments);
 //        product = product.applyRating(Rateable.convert(Math.round((float) sum / reviews.size())));
-        product = product.applyRating(
-                Rateable.convert(
-                        (int) Math.round(
-                                reviews.stream()
-                                        .mapToInt(r -> r.getRating().ordinal())
-                                        .average()
-                                        .orElse(0))));
-        //System.out.println(product);
-        products.put(product, reviews);
-        return product;
+        // the new version of the product is enough for the report cache to skip its older reports
+        changes.reviewAdded(id, rating, comments);
+        return store.addRatings(id, rating.ordinal(), 1);
     }
 
+    /**
+     * Adds a review to a product and waits for the review to be journaled
+     *
+     * @param id the id of the product
+     * @param rating the review rating
+     * @param comments the review comments
+     * @return the re-rated product, or {@code null} if it does not exist
+     * @throws UncheckedIOException if the review could not be journaled,
+     * after which the catalogue is read only
+     */
     public Product reviewProduct(int id, Rating rating, String comments) {
+        long start = System.nanoTime();
+        ProductManager shard = shardFor(id);
+        // the journal commit is waited for after the writer of the shard is free again
+        Product product = join(shard.write(() -> shard.applyReview(id, rating, comments)));
+        metrics.review.record(ProductManagerMetrics.since(start));
+        return product;
+    }
+
+    /**
+     * Adds a review to a product of this shard
+     *
+     * @return a future completed with the re-rated product once the review
+     * is journaled, or with {@code null} if the product does not exist
+     */
+    private CompletableFuture<Product> applyReview(int id, Rating rating, String comments) {
+        Product product = null;
+        CompletableFuture<Void> committed = null;
+        ByteBuffer record = (journal == null) ? null : ReviewJournal.record(id, rating, comments);
+        // lazily loaded reviews are read before the stripe is taken
+        reviews.prefetch(id);
+        Lock stripe = stripe(id);
         try {
-            writeLock.lock();
-            return reviewProduct(findProduct(id), rating, comments);
+            stripe.lock();
+            lookupProduct(id);
+            product = addReview(id, rating, comments);
+            // appending under the stripe keeps the journal in the order the reviews were applied
+            if (record != null) {
+                committed = journal.append(record);
+            }
         } catch (ProductManagerException ex) {
             logger.log(Level.SEVERE, ex.getMessage());
         } finally {
-            writeLock.unlock();
+            stripe.unlock();
+        }
+        if (committed == null) {
+            return CompletableFuture.completedFuture(product);
+        }
+        Product reviewed = product;
+        return committed.handle((done, ex) -> {
+            if (ex != null) {
+                throw journalFailure("Error journaling review of product " + id, ex);
+            }
+            return reviewed;
+        });
+    }
+
+    /**
+     * Creates a batch of products, taking the write lock once for every
+     * 4096 products instead of once per product
+     *
+     * @param specs the products to create
+     * @return the result of each product, in the order of the batch
+     */
+    public List<BatchResult> createProducts(Collection<ProductSpec> specs) {
+        if (shards != null) {
+            return scatter(new ArrayList<>(specs), ProductSpec::getId, ProductManager::createProducts);
+        }
+        return write(() -> storeProducts(specs));
+    }
+
+    private List<BatchResult> storeProducts(Collection<ProductSpec> specs) {
+        List<BatchResult> results = new ArrayList<>(specs.size());
+        Iterator<ProductSpec> items = specs.iterator();
+        while (items.hasNext()) {
+            try {
+                writeLock.lock();
+                for (int i = 0; i < BATCH_CHUNK && items.hasNext(); i++) {
+                    results.add(addProduct(items.next()));
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        return results;
+    }
+
+    // the caller holds the write lock
+    private BatchResult addProduct(ProductSpec spec) {
+        try {
+            Product product = spec.toProduct();
+            if (!store.add(product, new RatingAggregate())) {
+                return BatchResult.rejected("Product with id " + spec.getId() + " already exists");
+            }
+            changes.productCreated(product);
+            return BatchResult.applied(product);
+        } catch (RuntimeException ex) {
+            return BatchResult.rejected("Error adding product " + spec + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Adds a batch of reviews grouped by product, so that each product is
+     * locked and re-rated once for all its reviews
+     * <br>
+     * The journal commits of the whole batch are waited for after all the
+     * locks are released
+     *
+     * @param batch the reviews to add
+     * @return the result of each review, in the order of the batch
+     * @throws UncheckedIOException if the reviews could not be journaled,
+     * after which the catalogue is read only
+     */
+    public List<BatchResult> reviewProducts(Collection<ProductReview> batch) {
+        if (shards != null) {
+            return scatter(new ArrayList<>(batch), ProductReview::getProductId, ProductManager::reviewProducts);
+        }
+        return join(write(() -> applyReviews(batch)));
+    }
+
+    // the results are completed once all the reviews of the batch are journaled
+    private CompletableFuture<List<BatchResult>> applyReviews(Collection<ProductReview> batch) {
+        List<ProductReview> items = new ArrayList<>(batch);
+        BatchResult[] results = new BatchResult[items.size()];
+        // the positions of the reviews of each product, in the order the products first appear
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            ProductReview item = items.get(i);
+            if (item.getRating() == null) {
+                results[i] = BatchResult.rejected("Review of product " + item.getProductId() + " has no rating");
+            } else {
+                groups.computeIfAbsent(item.getProductId(), id -> new ArrayList<>()).add(i);
+            }
+        }
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        groups.forEach((id, positions) -> addReviews(id, positions, items, results, commits));
+        return CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0])).handle((done, ex) -> {
+            if (ex != null) {
+                throw journalFailure("Error journaling batch of reviews", ex);
+            }
+            return Arrays.asList(results);
+        });
+    }
+
+    // the reviews are already applied, so the journal refuses any more and the catalogue turns read only
+    private static UncheckedIOException journalFailure(String message, Throwable ex) {
+        Throwable cause = (ex instanceof CompletionException) ? ex.getCause() : ex;
+        logger.log(Level.SEVERE, message + " " + cause.getMessage());
+        return new UncheckedIOException(message,
+                (cause instanceof IOException) ? (IOException) cause : new IOException(cause));
+    }
+
+    /**
+     * Splits a batch by the shard of each item, applies the parts to their
+     * shards in parallel and puts the results back in the order of the batch
+     *
+     * @param id the product id of an item
+     * @param apply applies a part of the batch to a shard
+     */
+    private <T> List<BatchResult> scatter(List<T> batch, ToIntFunction<T> id,
+            BiFunction<ProductManager, List<T>, List<BatchResult>> apply) {
+        List<List<T>> parts = new ArrayList<>();
+        List<List<Integer>> positions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            int shard = shardOf(id.applyAsInt(batch.get(i)), shards.length);
+            parts.get(shard).add(batch.get(i));
+            positions.get(shard).add(i);
+        }
+        BatchResult[] results = new BatchResult[batch.size()];
+        IntStream.range(0, shards.length).parallel()
+                .filter(shard -> !parts.get(shard).isEmpty())
+                .forEach(shard -> {
+                    List<BatchResult> applied = apply.apply(shards[shard], parts.get(shard));
+                    for (int i = 0; i < applied.size(); i++) {
+                        results[positions.get(shard).get(i)] = applied.get(i);
+                    }
+                });
+        return Arrays.asList(results);
+    }
+
+    private void addReviews(int id, List<Integer> positions, List<ProductReview> items, BatchResult[] results,
+            List<CompletableFuture<Void>> commits) {
+        reviews.prefetch(id);
+        Lock stripe = stripe(id);
+        try {
+            stripe.lock();
+            if (store.get(id) == null) {
+                BatchResult notFound = BatchResult.rejected("Product with id " + id + " not found");
+                positions.forEach(i -> results[i] = notFound);
+                return;
+            }
+            List<ByteBuffer> records = new ArrayList<>(positions.size());
+            if (journal != null) {
+                for (int i : positions) {
+                    records.add(ReviewJournal.record(id, items.get(i).getRating(), items.get(i).getComments()));
+                }
+            }
+            List<Review> added = new ArrayList<>(positions.size());
+            long ratingSum = 0;
+            for (int i : positions) {
+                ProductReview item = items.get(i);
+                added.add(new Review(item.getRating(), item.getComments()));
+                ratingSum += item.getRating().ordinal();
+                changes.reviewAdded(id, item.getRating(), item.getComments());
+            }
+            for (ByteBuffer record : records) {
+                commits.add(journal.append(record));
+            }
+            reviews.addAll(id, added);
+            metrics.reviewsAdded(added.size());
+            BatchResult reviewed = BatchResult.applied(store.addRatings(id, ratingSum, added.size()));
+            positions.forEach(i -> results[i] = reviewed);
+        } finally {
+            stripe.unlock();
         }
-        return null;
     }
 
     public Product findProduct(int id) throws ProductManagerException {
+        if (shards != null) {
+            return shardFor(id).findProduct(id);
+        }
+        long start = System.nanoTime();
 //        Product result = null;
 //        for (Product product : products.keySet()) {
 //            if (product.getId() == id) {
@@ -201,32 +660,155 @@ public class ProductManager {
 //        }
 //        return result;
         try {
-            readLock.lock();
-            return products.keySet()
-                    .stream()
-                    .filter(p -> p.getId() == id)
-                    .findFirst()
-                    .orElseThrow(() -> new ProductManagerException("Product with id " + id + " not found"));
-            //.get();
-            //.orElseGet(()->null);
+            // products are immutable, so one that is being re-rated is read either before or after
+            Product product = readOptimistically(() -> store.get(id));
+            if (product == null) {
+                throw new ProductManagerException("Product with id " + id + " not found");
+            }
+            return product;
         } finally {
-            readLock.unlock();
+            metrics.find.record(ProductManagerMetrics.since(start));
         }
 
     }
 
-    private void printProductReport(Product product, String languageTag, String client) throws IOException {
+    // the caller holds the stripe of the product
+    private Product lookupProduct(int id) throws ProductManagerException {
+        Product product = store.get(id);
+        if (product == null) {
+            throw new ProductManagerException("Product with id " + id + " not found");
+        }
+        return product;
+    }
+
+    /**
+     * Reads from the catalogue without taking a lock, and reads again under
+     * the read lock if products were added or replaced in the meantime
+     * <br>
+     * A read that overlaps a writer may see the stores half changed, so any
+     * exception it throws is only passed on if no writer got in between
+     */
+    private <T> T readOptimistically(Supplier<T> read) {
+        awaitReplication();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = read.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException ex) {
+                if (lock.validate(stamp)) {
+                    throw ex;
+                }
+            }
+        }
+        long granted = readLock.lockShared();
+        try {
+            return read.get();
+        } finally {
+            readLock.unlockShared(granted);
+        }
+    }
+
+    private int productCount() {
+        return partitions.stream().mapToInt(partition -> partition.store.size()).sum();
+    }
+
+    private ProductManager shardFor(int id) {
+        return (shards == null) ? this : shards[shardOf(id, shards.length)];
+    }
+
+    /**
+     * Spreads the product ids over the shards by the high bits of their
+     * hash, so that the lock stripes, which use the low bits, stay spread
+     * within each shard
+     */
+    private static int shardOf(int id, int shardCount) {
+        return (int) ((Integer.toUnsignedLong(id * 0x9E3779B9) * shardCount) >>> 32);
+    }
+
+    /**
+     * Runs a write on the writer thread of this shard, so that the writes of
+     * each shard are applied one at a time, or else on the calling thread
+     */
+    private <T> T write(Supplier<T> operation) {
+        checkWritable();
+        if (writer == null) {
+            return operation.get();
+        }
+        return join(CompletableFuture.supplyAsync(operation, writer));
+    }
+
+    // waits for a future and throws the unchecked exception it failed with as is
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads all the shards in parallel
+     *
+     * @param read reads one shard
+     * @return the result of each shard
+     */
+    private <T> List<T> gather(Function<ProductManager, T> read) {
+        if (shards == null) {
+            return List.of(read.apply(this));
+        }
+        return partitions.parallelStream().map(read).collect(Collectors.toList());
+    }
+
+    /**
+     * Merges lists that are each sorted into one sorted list, taking the
+     * next product from the list whose head comes first
+     *
+     * @param lists the sorted lists
+     * @param order the order of the lists
+     * @param limit the maximum number of products
+     * @return the merged list
+     */
+    private static List<Product> mergeSorted(List<List<Product>> lists, Comparator<Product> order, int limit) {
+        if (lists.size() == 1) {
+            List<Product> list = lists.get(0);
+            return (list.size() > limit) ? list.subList(0, limit) : list;
+        }
+        // the lists by their next product; a list is moved on only while it is out of the queue
+        int[] next = new int[lists.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(lists.size(),
+                (a, b) -> order.compare(lists.get(a).get(next[a]), lists.get(b).get(next[b])));
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+        List<Product> merged = new ArrayList<>();
+        while (merged.size() < limit && !heads.isEmpty()) {
+            int list = heads.poll();
+            merged.add(lists.get(list).get(next[list]++));
+            if (next[list] < lists.get(list).size()) {
+                heads.add(list);
+            }
+        }
+        return merged;
+    }
+
+    private Lock stripe(int id) {
+        int h = id * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    private String formatProductReport(Product product, List<Review> reviews, String languageTag) {
         ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
-        List<Review> reviews = products.get(product);
-        Collections.sort(reviews);
         StringBuilder txt = new StringBuilder();
-//        txt.append(MessageFormat.format(resources.getString("product"),
-//                product.getName(),
-//                moneyFormat.format(product.getPrice()),
-//                product.getRating().getStars(),
-//                dateFormat.format(product.getBestBefore())));
-        txt.append(formatter.formatProduct(product));
-        txt.append('\n');
+        formatter.appendProduct(product, txt);
+        txt.append(System.lineSeparator());
 //        for (Review review : reviews) {
 ////            if (review == null) {
 ////                break;
@@ -254,92 +836,381 @@ public class ProductManager {
 //            txt.append(resources.getString("no.reviews"));
 //        }
 
+        if (reviews.isEmpty()) {
+            txt.append(formatter.getText("no.reviews"));
+            txt.append(System.lineSeparator());
+        } else {
+            reviews.forEach(r -> formatter.appendReview(r, txt).append(System.lineSeparator()));
+        }
+        return txt.toString();
+    }
+
+    private Path writeProductReport(Product product, String report, String client) throws IOException {
         Path productFile = reportsFolder.resolve(MessageFormat.format(
                 config.getString("report.file"),
                 product.getId(),
                 client));
-        try (OutputStreamWriter osw = new OutputStreamWriter(
-                Files.newOutputStream(productFile, StandardOpenOption.CREATE),
-                "UTF-8");
-                PrintWriter out = new PrintWriter(osw)) {
-
-            out.append(formatter.formatProduct(product) + System.lineSeparator());
-            if (reviews.isEmpty()) {
-                out.append(formatter.getText("no.reviews") + System.lineSeparator());
-                txt.append(formatter.getText("no.reviews") + '\n');
-            } else {
-                var reviewsF = reviews.stream()
-                        .map(r -> formatter.formatReview(r) + '\n')
-                        .collect(Collectors.joining());
-                out.append(reviewsF);
-                txt.append(reviewsF);
-//            reviews.stream()
-//                    .forEach(r -> txt.append(formatter.formatReview(r)+'\n'));
+        try (Writer out = Files.newBufferedWriter(productFile, StandardCharsets.UTF_8)) {
+            out.write(report);
+        }
+        metrics.reportWritten(Files.size(productFile));
+        return productFile;
+    }
+
+    /**
+     * Reads a product in a short critical section, together with a copy of
+     * its reviews unless its report is already cached, so that the report
+     * can be formatted and written without holding any lock
+     * <br>
+     * Lazily loaded reviews are only prefetched once the report turns out
+     * not to be cached, and the product is then read again
+     */
+    private ReportSource snapshotProduct(int id, String languageTag) throws ProductManagerException {
+        awaitReplication();
+        Lock stripe = stripe(id);
+        boolean prefetched = !lazyReviews;
+        while (true) {
+            try {
+                stripe.lock();
+                // the version is read first, a rating added in between only
+                // makes the cached report newer than its version
+                long version = store.getVersion(id);
+                Product product = lookupProduct(id);
+                long day = LocalDate.now().toEpochDay();
+                String report = reportCache.get(id, version, day, languageTag);
+                if (report != null || prefetched) {
+                    return new ReportSource(product, version, day,
+                            (report == null) ? reviews.get(id) : null, report);
+                }
+            } finally {
+                stripe.unlock();
             }
+            reviews.prefetch(id);
+            prefetched = true;
         }
-        System.out.println(txt);
+    }
+
+    private String renderProductReport(ReportSource source, String languageTag) {
+        if (source.report != null) {
+            return source.report;
+        }
+        Collections.sort(source.reviews);
+        String report = formatProductReport(source.product, source.reviews, languageTag);
+        reportCache.put(source.product.getId(), source.version, source.day, languageTag, report);
+        return report;
     }
 
     public void printProductReport(int id, String languageTag, String client) {
+        if (shards != null) {
+            shardFor(id).printProductReport(id, languageTag, client);
+            return;
+        }
+        long start = System.nanoTime();
+        String language = supportedLanguage(languageTag);
         try {
-            writeLock.lock();
-            printProductReport(findProduct(id), languageTag, client);
+            ReportSource source = snapshotProduct(id, language);
+            String report = renderProductReport(source, language);
+            writeProductReport(source.product, report, client);
+            System.out.println(report);
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error printing product report " + ex.getMessage(), ex);
-        } finally {
-            writeLock.unlock();
         }
+        metrics.report.record(ProductManagerMetrics.since(start));
     }
 
-    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String languageTag) {
+    /**
+     * Queues the report of a product to be formatted and written by the report
+     * writer threads
+     *
+     * @param id the product id
+     * @param languageTag the language of the report
+     * @param client the client the report is written for
+     * @return a future completed with the report file, or exceptionally if
+     * the product does not exist, the report queue is full or the report
+     * cannot be written
+     */
+    public CompletableFuture<Path> submitProductReport(int id, String languageTag, String client) {
+        if (shards != null) {
+            return shardFor(id).submitProductReport(id, languageTag, client);
+        }
+        long start = System.nanoTime();
+        String language = supportedLanguage(languageTag);
+        ReportSource source;
         try {
-            readLock.lock();
-            ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
+            source = snapshotProduct(id, language);
+        } catch (ProductManagerException ex) {
+            metrics.report.record(ProductManagerMetrics.since(start));
+            return CompletableFuture.failedFuture(ex);
+        }
+        CompletableFuture<Path> report = reportService.submit(() -> writeProductReport(source.product,
+                renderProductReport(source, language), client));
+        // the latency of a queued report includes its time in the queue
+        report.whenComplete((file, ex) -> metrics.report.record(ProductManagerMetrics.since(start)));
+        return report;
+    }
+
+    /**
+     * Counts how often product reports were served without being formatted
+     * again
+     *
+     * @return the report cache statistics
+     */
+    public ReportCacheStatistics getReportCacheStatistics() {
+        if (shards == null) {
+            return reportCache.getStatistics();
+        }
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        int size = 0;
+        int capacity = 0;
+        for (ProductManager shard : shards) {
+            ReportCacheStatistics statistics = shard.reportCache.getStatistics();
+            hits += statistics.getHits();
+            misses += statistics.getMisses();
+            evictions += statistics.getEvictions();
+            size += statistics.getSize();
+            capacity += statistics.getCapacity();
+        }
+        return new ReportCacheStatistics(hits, misses, evictions, size, capacity);
+    }
+
+    private static String supportedLanguage(String languageTag) {
+        return formatters.containsKey(languageTag) ? languageTag : "es-ES";
+    }
+
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String languageTag) {
+        // each shard filters and sorts a copy of its products, and the sorted copies are merged
+        List<List<Product>> sorted = gather(partition -> partition.snapshotProducts().stream()
+                .filter(filter)
+                .sorted(sorter)
+                .collect(Collectors.toList()));
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
 //        List<Product> productList = new ArrayList<>(products.keySet());
 //        productList.sort(sorter);
-            StringBuilder txt = new StringBuilder();
+        StringBuilder txt = new StringBuilder();
 //        for (Product product : productList) {
 //            txt.append(formatter.formatProduct(product));
 //            txt.append('\n');
 ////            printProductReport(product);
 //        }
-            products.keySet()
-                    .stream()
-                    .sorted(sorter)
-                    .filter(filter)
-                    //.forEach(p ->  printProductReport(p));
-                    .forEach(p -> txt.append(formatter.formatProduct(p) + '\n'));
-            System.out.println(txt);
-        } finally {
-            readLock.unlock();
+        mergeSorted(sorted, sorter, Integer.MAX_VALUE)
+                .forEach(p -> formatter.appendProduct(p, txt).append('\n'));
+        System.out.println(txt);
+    }
+
+    /**
+     * Finds the products that match a query, using the price, rating and best
+     * before indexes for its ranges and order
+     * <br>
+     * Products re-rated while the query runs are returned at most once, with
+     * either rating
+     * <br>
+     * A sharded catalogue runs the query on all its shards in parallel and
+     * merges their results in the order of the query, or lists them shard
+     * after shard when the query has no order
+     *
+     * @param query the query
+     * @return the matching products in the order of the query
+     */
+    public List<Product> findProducts(ProductQuery query) {
+        return merge(query, gather(partition -> partition.readOptimistically(
+                () -> partition.store.query(query, null, query.getLimit()))), query.getLimit());
+    }
+
+    // merges the products each shard found for a query
+    private static List<Product> merge(ProductQuery query, List<List<Product>> found, int limit) {
+        Comparator<Product> order = query.getResultOrder();
+        if (order != null) {
+            return mergeSorted(found, order, limit);
         }
+        List<Product> products = new ArrayList<>();
+        for (List<Product> shardProducts : found) {
+            products.addAll(shardProducts.subList(0, Math.min(shardProducts.size(), limit - products.size())));
+        }
+        return products;
     }
 
-    private Review parseReview(String text) {
-        Review review = null;
+    /**
+     * Lists one page of the products that match a query
+     * <br>
+     * The cursor names the last product of the previous page, so the listing
+     * carries on from where that product is now. The limit of the query is
+     * replaced by the page size
+     * <br>
+     * No index orders a query sorted by a comparator, so each of its pages
+     * selects from all the matching products again. Such listings are meant
+     * for their first few pages
+     *
+     * @param query the query
+     * @param cursor the cursor of the previous page, {@code null} for the
+     * first page
+     * @param pageSize the maximum number of products in the page
+     * @return the page
+     * @throws ProductManagerException if the cursor is not valid
+     */
+    public ProductPage listProducts(ProductQuery query, String cursor, int pageSize) throws ProductManagerException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive");
+        }
+        int cursorId = (cursor == null) ? 0 : cursorId(cursor);
+        // one more product tells whether there is a next page
+        int fetch = (pageSize == Integer.MAX_VALUE) ? pageSize : pageSize + 1;
+        List<Product> page;
+        if (shards == null) {
+            page = readOptimistically(() -> {
+                Product after = (cursor == null) ? null : store.get(cursorId);
+                return (cursor != null && after == null) ? null : store.query(query, after, fetch);
+            });
+        } else {
+            page = listShards(query, cursor, cursorId, fetch);
+        }
+        if (page == null) {
+            throw new ProductManagerException("The product of cursor " + cursor + " no longer exists");
+        }
+        if (page.size() > pageSize) {
+            page = page.subList(0, pageSize);
+            return new ProductPage(page, Integer.toString(page.get(pageSize - 1).getId()));
+        }
+        return new ProductPage(page, null);
+    }
+
+    /**
+     * Lists products of all the shards from a cursor
+     * <br>
+     * Ordered queries carry on after the product of the cursor in every
+     * shard. Queries without an order list the shards one after the other,
+     * so they carry on in the shard of the product, and from the start in the
+     * shards after it
+     *
+     * @return the products, or {@code null} if the product of the cursor no
+     * longer exists
+     */
+    private List<Product> listShards(ProductQuery query, String cursor, int cursorId, int limit) {
+        ProductManager cursorShard = (cursor == null) ? null : shardFor(cursorId);
+        Product after = (cursor == null) ? null
+                : cursorShard.readOptimistically(() -> cursorShard.store.get(cursorId));
+        if (cursor != null && after == null) {
+            return null;
+        }
+        boolean ordered = query.getResultOrder() != null;
+        int firstShard = (ordered || cursor == null) ? 0 : cursorShard.shardIndex;
+        return merge(query, gather(shard -> {
+            if (shard.shardIndex < firstShard) {
+                return List.of();
+            }
+            Product start = (ordered || shard == cursorShard) ? after : null;
+            return shard.readOptimistically(() -> shard.store.query(query, start, limit));
+        }), limit);
+    }
+
+    private static int cursorId(String cursor) throws ProductManagerException {
         try {
-            Object[] values = reviewFormat.parse(text);
-//            reviewProduct(Integer.parseInt((String) values[0]),
-//                    Rateable.convert(Integer.parseInt((String) values[1])),
-//                    (String) values[2]);
-            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])),
-                    (String) values[1]);
-        } catch (ParseException | NumberFormatException ex) {
-            logger.log(Level.WARNING, "Error parsing review " + text, ex.getMessage());
-            //throw new ProductManagerException("Unable to parse review", ex);
+            return Integer.parseInt(cursor);
+        } catch (NumberFormatException ex) {
+            throw new ProductManagerException("Invalid cursor " + cursor);
+        }
+    }
+
+    /**
+     * Writes the products that match a query, a line each, one page at a time
+     * <br>
+     * Only one page and its text are kept in memory, and each page is written
+     * and flushed after the catalogue was unlocked, so a slow writer does not
+     * hold up changes to the catalogue
+     * <br>
+     * A query sorted by a comparator is selected in one pass instead, since
+     * paging it would select from all the products again for every page, and
+     * its products are kept in memory while they are written page by page
+     *
+     * @param query the query
+     * @param languageTag the language the products are formatted in
+     * @param out where to write the products
+     * @throws IOException if the products cannot be written
+     */
+    public void writeProducts(ProductQuery query, String languageTag, Appendable out) throws IOException {
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
+        StringBuilder txt = new StringBuilder();
+        if (query.hasSorter()) {
+            List<Product> products = findProducts(query);
+            for (int from = 0; from < products.size(); from += LISTING_PAGE_SIZE) {
+                writePage(products.subList(from, Math.min(from + LISTING_PAGE_SIZE, products.size())),
+                        formatter, txt, out);
+            }
+            return;
+        }
+        String cursor = null;
+        int remaining = query.getLimit();
+        while (remaining > 0) {
+            ProductPage page;
+            try {
+                page = listProducts(query, cursor, Math.min(LISTING_PAGE_SIZE, remaining));
+            } catch (ProductManagerException ex) {
+                logger.log(Level.WARNING, "Listing stopped " + ex.getMessage());
+                return;
+            }
+            writePage(page.getProducts(), formatter, txt, out);
+            if (!page.hasNext()) {
+                return;
+            }
+            remaining -= page.getProducts().size();
+            cursor = page.getNextCursor();
         }
-        return review;
+    }
+
+    private static void writePage(List<Product> products, ResourceFormatter formatter, StringBuilder txt,
+            Appendable out) throws IOException {
+        txt.setLength(0);
+        products.forEach(p -> formatter.appendProduct(p, txt).append('\n'));
+        out.append(txt);
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    public void printProducts(ProductQuery query, String languageTag) {
+        try {
+            writeProducts(query, languageTag, System.out);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error printing products " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Copies the current products while none is added or replaced, so that
+     * catalogue wide reads work on a copy without holding any lock
+     * <br>
+     * Products re-rated during the copy are copied either before or after
+     *
+     * @return a copy of the catalogue
+     */
+    private List<Product> snapshotProducts() {
+        return readOptimistically(() -> {
+            List<Product> catalogue = new ArrayList<>(store.size());
+            store.forEach(catalogue::add);
+            return catalogue;
+        });
+    }
+
+    private Review parseReview(CsvParser csv) throws ProductManagerException {
+        Rating rating = Rateable.convert(csv.nextInt());
+        return new Review(rating, csv.nextText());
     }
 
     private Product loadProduct(Path file) {
         Product product = null;
 
         try {
-            product = parseProduct(Files.lines(dataFolder.resolve(file), Charset.forName("UTF-8"))
-                    .findFirst().orElseThrow());
+            CsvParser csv = CsvParser.open(dataFolder.resolve(file));
+            if (csv.nextLine()) {
+                product = parseProduct(csv);
+            } else {
+                logger.log(Level.SEVERE, "Error loading product, " + file + " is empty");
+            }
         } catch (Exception ex) {
+            // one bad file must not stop the other files of a parallel load
             logger.log(Level.SEVERE, "Error loading product " + ex.getMessage());
         }
 
@@ -347,18 +1218,26 @@ public class ProductManager {
     }
 
     private List<Review> loadReviews(Product product) {
-        List<Review> reviews = null;
+        return loadReviews(reviewsFile(product.getId()));
+    }
 
-        Path file = reportsFolder.resolve(MessageFormat.format(config.getString("reviews.data.file"),
-                product.getId()));
-        if (Files.notExists(file)) {
-            reviews = new ArrayList<>();
-        } else {
+    private Path reviewsFile(int id) {
+        return reportsFolder.resolve(MessageFormat.format(config.getString("reviews.data.file"), id));
+    }
+
+    private List<Review> loadReviews(Path file) {
+        List<Review> reviews = new ArrayList<>();
+
+        if (Files.exists(file)) {
             try {
-                reviews = Files.lines(file, Charset.forName("UTF-8"))
-                        .map(text -> parseReview(text))
-                        .filter(review -> review != null)
-                        .collect(Collectors.toList());
+                CsvParser csv = CsvParser.open(file);
+                while (csv.nextLine()) {
+                    try {
+                        reviews.add(parseReview(csv));
+                    } catch (ProductManagerException ex) {
+                        logger.log(Level.WARNING, "Error parsing review " + ex.getMessage());
+                    }
+                }
             } catch (IOException ex) {
                 logger.log(Level.SEVERE, "Error loading reviews " + ex.getMessage());
             }
@@ -366,127 +1245,1055 @@ public class ProductManager {
         return reviews;
     }
 
-    private Product parseProduct(String text) {
-        Product product = null;
-        try {
-            Object[] values = productFormat.parse(text);
-            int id = Integer.parseInt((String) values[1]);
-            String name = (String) values[2];
-            BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
-            Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
-            switch ((String) values[0]) {
-                case "D":
-                    //createProduct(id, name, price, rating);
-                    product = new Drink(id, name, price, rating);
-                    break;
-                case "F":
-                    LocalDate bestBefore = LocalDate.parse((CharSequence) values[5]);
-                    //createProduct(id, name, price, rating,bestBefore);
-                    product = new Food(id, name, price, rating, bestBefore);
-                    break;
+    // writes a reviews file in the format it is loaded from, replacing the previous file at once
+    private void writeReviews(Path file, List<Review> reviews) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Review review : reviews) {
+                out.write(MessageFormat.format(config.getString("review.data.format"), review.getRating().ordinal(),
+                        (review.getComments() == null) ? "" : review.getComments()));
+                out.write(System.lineSeparator());
             }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
-        } catch (ParseException | NumberFormatException | DateTimeParseException ex) {
-            Logger.getLogger(ProductManager.class.getName()).log(Level.SEVERE, null, ex);
+    private Product parseProduct(CsvParser csv) throws ProductManagerException {
+        Product product = null;
+        char type = csv.nextChar();
+        int id = csv.nextInt();
+        String name = csv.nextField();
+        BigDecimal price = csv.nextDecimal();
+        Rating rating = Rateable.convert(csv.nextInt());
+        switch (type) {
+            case 'D':
+                product = new Drink(id, name, price, rating);
+                break;
+            case 'F':
+                LocalDate bestBefore = csv.nextDate();
+                product = new Food(id, name, price, rating, bestBefore);
+                break;
+            default:
+                throw new ProductManagerException("Unknown product type " + type + " on line " + csv.getLineNumber());
         }
         return product;
     }
 
     public void dumpData() {
+        checkWritable();
+        long start = System.nanoTime();
         try {
+            lockShards();
             if (Files.notExists(tempFolder)) {
                 Files.createDirectory(tempFolder);
             }
             Path tempFile = tempFolder.resolve(MessageFormat.format(config.getString("temp.file"), Instant.now().getNano()));
-            try (ObjectOutputStream out = new ObjectOutputStream(
-                    Files.newOutputStream(tempFile, StandardOpenOption.CREATE))) {
-                out.writeObject(products);
-                products = new ConcurrentHashMap<>();
+            // the reviews journaled so far are in the snapshot, the next generation of the journal holds the later ones
+            int generation = (journal == null) ? 0 : journal.getGeneration() + 1;
+            CatalogueSnapshot.write(tempFile, allProducts(), productCount(), reviewCount(),
+                    id -> shardFor(id).reviews.get(id), generation);
+            boolean checkpointed = journal != null && (lazyReviews ? flushReviews() : writeCheckpoint(tempFile));
+            installAll(Map.of());
+            if (checkpointed) {
+                if (lazyReviews) {
+                    // the reviews files hold every journaled review, so a checkpoint of an eager catalogue is stale
+                    Files.deleteIfExists(checkpointFile());
+                }
+                journal.checkpoint(generation).join();
+                reviewIndex.setGeneration(generation);
             }
-        } catch (IOException ex) {
+        } catch (IOException | CompletionException ex) {
             logger.log(Level.SEVERE, "Error dumping data " + ex.getMessage(), ex);
+        } finally {
+            unlockShards();
         }
+        metrics.lastDump = ProductManagerMetrics.since(start);
     }
 
     @SuppressWarnings("unchecked")
     public void restoreData() {
+        checkWritable();
+        long start = System.nanoTime();
         try {
-            Path tempFile = Files.list(tempFolder)
-                    .filter(path -> path.getFileName().toString().endsWith("tmp"))
-                    .findFirst().orElseThrow();
-            try (ObjectInputStream in = new ObjectInputStream(
-                    Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE))) {
-                products = (ConcurrentHashMap) in.readObject();
+            lockShards();
+            Path tempFile;
+            try (Stream<Path> files = Files.list(tempFolder)) {
+                tempFile = files
+                        .filter(path -> path.getFileName().toString().endsWith("tmp"))
+                        .findFirst().orElseThrow();
+            }
+            Map<Product, List<Review>> products;
+            if (CatalogueSnapshot.isSnapshot(tempFile)) {
+                try (FileChannel in = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+                    products = CatalogueSnapshot.read(in);
+                }
+            } else {
+                // dumps taken before the binary snapshot format used Java serialization
+                try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(tempFile))) {
+                    products = (ConcurrentHashMap) in.readObject();
+                }
             }
+            // a dump that cannot be read is kept, so that it can still be recovered
+            Files.delete(tempFile);
+            installAll(products);
         } catch (Exception ex) {
             logger.log(Level.SEVERE, "Error restoring data " + ex.getMessage(), ex);
+        } finally {
+            unlockShards();
         }
+        metrics.lastRestore = ProductManagerMetrics.since(start);
     }
 
-    private void loadAllData() {
+    /**
+     * Keeps a copy of a dump next to the journal, as the checkpoint that the
+     * journal is replayed onto at startup
+     *
+     * @return {@code true} once the checkpoint is on disk
+     */
+    private boolean writeCheckpoint(Path snapshot) {
+        Path file = checkpointFile();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
         try {
-            products = Files.list(dataFolder)
-                    .filter(file -> file.getFileName().toString().startsWith("product"))
-                    .map(file -> loadProduct(file))
-                    .filter(product -> product != null)
-                    .map(product -> product.applyRating(
-                    Rateable.convert(
-                            (int) Math.round(
-                                    loadReviews(product).stream()
-                                            .mapToInt(r -> r.getRating().ordinal())
-                                            .average()
-                                            .orElse(0)))))
-                    .collect(Collectors.toMap(product -> product,
-                            product -> loadReviews(product)));
+            Files.copy(snapshot, temp, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
         } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error writing journal checkpoint " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    // writes back the reviews of every shard, which then stand in for the journal
+    private boolean flushReviews() {
+        boolean flushed = true;
+        for (ProductManager partition : partitions) {
+            flushed &= partition.cachedReviews.flush();
+        }
+        if (!flushed) {
+            logger.log(Level.WARNING, "Keeping the review journal, not every review could be written back");
+        }
+        return flushed;
+    }
+
+    private Path checkpointFile() {
+        return reportsFolder.resolve(setting("journal.file", "") + ".snapshot");
+    }
+
+    // takes the write locks of all the shards, in the order of the shards
+    private void lockShards() {
+        for (ProductManager partition : partitions) {
+            partition.writeLock.lock();
+        }
+    }
+
+    private void unlockShards() {
+        for (int i = partitions.size() - 1; i >= 0; i--) {
+            partitions.get(i).writeLock.unlock();
+        }
+    }
+
+    // the products of all the shards, one shard after the other
+    private Iterable<Product> allProducts() {
+        if (shards == null) {
+            return store;
+        }
+        return () -> new Iterator<>() {
+            private int shard;
+            private Iterator<Product> current = shards[0].store.iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shard < shards.length - 1) {
+                    current = shards[++shard].store.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Product next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    private long reviewCount() {
+        return partitions.stream().mapToLong(partition -> partition.reviews.size()).sum();
+    }
+
+    private void loadAllData() {
+        long start = System.nanoTime();
+        int parallelism = (loadParallelism > 0) ? loadParallelism
+                : virtualThreads ? VIRTUAL_LOAD_PARALLELISM : Runtime.getRuntime().availableProcessors();
+        AtomicInteger failedFiles = new AtomicInteger();
+        ForkJoinPool pool = virtualThreads ? null : new ForkJoinPool(parallelism);
+        checkpoint = readCheckpoint();
+        try (Stream<Path> files = Files.list(dataFolder)) {
+            List<Path> productFiles = files
+                    .filter(file -> file.getFileName().toString().startsWith("product"))
+                    .collect(Collectors.toList());
+            if (lazyReviews) {
+                List<Map<Product, RatingAggregate>> parts = partition(loadFiles(productFiles, pool, parallelism,
+                        failedFiles, file -> loadRatings(file, failedFiles)));
+                for (int i = 0; i < parts.size(); i++) {
+                    partitions.get(i).installRatings(parts.get(i));
+                    if (checkpoint != null) {
+                        partitions.get(i).restoreCheckpointed(checkpoint);
+                    }
+                    // keeps the ratings read from the reviews files for the next start
+                    partitions.get(i).cachedReviews.flush();
+                }
+            } else {
+                installAll(loadFiles(productFiles, pool, parallelism, failedFiles,
+                        file -> loadEntry(file, failedFiles, checkpoint)));
+            }
+        } catch (IOException | UncheckedIOException | ExecutionException ex) {
             logger.log(Level.SEVERE, "Error loading data " + ex.getMessage(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.SEVERE, "Loading data interrupted", ex);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
         }
+        loadStatistics = new LoadStatistics(productCount(), metrics.getReviews(),
+                failedFiles.get(), parallelism, Duration.ofNanos(System.nanoTime() - start));
+        metrics.lastLoad = loadStatistics.getElapsed().toNanos();
+        logger.log(Level.INFO, loadStatistics.toString());
     }
 
-    public Map<String, String> getDiscounts(String languageTag) {
+    /**
+     * Loads the product files in parallel, on the pool or on virtual threads
+     *
+     * @param load loads one product file, or returns null if it cannot be
+     * loaded
+     */
+    private <T> Map<Product, T> loadFiles(List<Path> productFiles, ForkJoinPool pool, int parallelism,
+            AtomicInteger failedFiles, Function<Path, Map.Entry<Product, T>> load)
+            throws InterruptedException, ExecutionException {
+        if (virtualThreads) {
+            return loadOnVirtualThreads(productFiles, parallelism, failedFiles, load);
+        }
+        // a parallel stream started from a task runs in the pool of that task
+        return pool.submit(() -> productFiles.parallelStream()
+                .map(load)
+                .filter(entry -> entry != null)
+                .collect(Collectors.toConcurrentMap(Map.Entry::getKey, Map.Entry::getValue,
+                        (first, second) -> first)))
+                .get();
+    }
+
+    /**
+     * Loads the product files on a number of virtual threads that each take
+     * the next file in turn, so that many files are read at the same time
+     * without a platform thread each
+     */
+    private <T> Map<Product, T> loadOnVirtualThreads(List<Path> productFiles, int parallelism,
+            AtomicInteger failedFiles, Function<Path, Map.Entry<Product, T>> load) throws InterruptedException {
+        Map<Product, T> products = new ConcurrentHashMap<>();
+        AtomicInteger nextFile = new AtomicInteger();
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(() -> {
+                int file;
+                while ((file = nextFile.getAndIncrement()) < productFiles.size()) {
+                    try {
+                        Map.Entry<Product, T> entry = load.apply(productFiles.get(file));
+                        if (entry != null) {
+                            products.putIfAbsent(entry.getKey(), entry.getValue());
+                        }
+                    } catch (RuntimeException ex) {
+                        failedFiles.incrementAndGet();
+                        logger.log(Level.SEVERE, "Error loading product " + ex.getMessage());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return products;
+    }
+
+    // a product rated by the reviews loaded for it, or null if its file cannot be loaded
+    private Map.Entry<Product, List<Review>> loadEntry(Path file, AtomicInteger failedFiles) {
+        return loadEntry(file, failedFiles, null);
+    }
+
+    // the reviews of a product come from the checkpoint unless its reviews file changed after it
+    private Map.Entry<Product, List<Review>> loadEntry(Path file, AtomicInteger failedFiles, Checkpoint checkpoint) {
+        Product product = loadProduct(file);
+        if (product == null) {
+            failedFiles.incrementAndGet();
+            return null;
+        }
+        List<Review> reviews = (checkpoint != null && checkpoint.covers(product.getId(), reviewsFile(product.getId())))
+                ? checkpoint.reviews.get(product.getId()) : loadReviews(product);
+        return Map.entry(product.applyRating(RatingAggregate.of(reviews).getRating()), reviews);
+    }
+
+    /**
+     * Replaces the reviews of the products of this shard whose reviews files
+     * are older than the checkpoint with the reviews it holds, to be written
+     * back by the review cache, for a checkpoint left by a catalogue that
+     * kept all its reviews in memory
+     */
+    private void restoreCheckpointed(Checkpoint checkpoint) {
+        List<Product> covered = new ArrayList<>();
+        for (Product product : store) {
+            if (checkpoint.covers(product.getId(), reviewsFile(product.getId()))) {
+                covered.add(product);
+            }
+        }
         try {
-            readLock.lock();
-            ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
-            return products.keySet()
-                    .stream()
-                    .collect(Collectors.groupingBy(
-                            product -> product.getRating().getStars(),
-                            Collectors.collectingAndThen(
-                                    Collectors.summingDouble(
-                                            product -> product.getDiscount().doubleValue()),
-                                    discount -> formatter.moneyFormat.format(discount))));
+            writeLock.lock();
+            for (Product product : covered) {
+                replaceProduct(product, checkpoint.reviews.get(product.getId()));
+            }
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
+        }
+    }
+
+    // a product rated from the review index, or null if its file cannot be loaded
+    private Map.Entry<Product, RatingAggregate> loadRatings(Path file, AtomicInteger failedFiles) {
+        Product product = loadProduct(file);
+        if (product == null) {
+            failedFiles.incrementAndGet();
+            return null;
         }
+        RatingAggregate ratings = shardFor(product.getId()).cachedReviews.readRatings(product.getId());
+        return Map.entry(product.applyRating(ratings.getRating()), ratings);
     }
 
+    /**
+     * Watches the data and reports folders when {@code watch.enabled} is set,
+     * to reload the files added or changed while the catalogue is running
+     */
+    private void startWatcher() {
+        if (!Boolean.parseBoolean(setting("watch.enabled", "false"))) {
+            return;
+        }
+        try {
+            watcher = new CatalogueWatcher(List.of(dataFolder, reportsFolder),
+                    Long.parseLong(setting("watch.debounce", "500")), this::reloadFiles);
+            logger.log(Level.INFO, "Watching " + dataFolder + " and " + reportsFolder + " for changed files");
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error watching data files " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Merges the products and reviews of changed files into the catalogue
+     * <br>
+     * The files are read before the write lock is taken, and only the
+     * products they concern are re-rated. A reviews file replaces all the
+     * reviews of its product, including those added since it was written,
+     * and the journal records the reload so that a restart does not replay
+     * the replaced reviews on top of the file
+     *
+     * @param changed the files added or changed in the watched folders
+     */
+    private void reloadFiles(Set<Path> changed) {
+        if (shards != null) {
+            // the files of each product go to its shard
+            Map<ProductManager, Set<Path>> shardFiles = new LinkedHashMap<>();
+            for (Path file : changed) {
+                Integer id = file.getParent().equals(dataFolder) ? fileId("product.data.file", file)
+                        : file.getParent().equals(reportsFolder) ? fileId("reviews.data.file", file) : null;
+                if (id != null) {
+                    shardFiles.computeIfAbsent(shardFor(id), shard -> new LinkedHashSet<>()).add(file);
+                }
+            }
+            shardFiles.forEach((shard, files) -> shard.reloadFiles(files));
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicInteger failedFiles = new AtomicInteger();
+        Map<Integer, Product> products = new HashMap<>();
+        Map<Integer, List<Review>> productReviews = new LinkedHashMap<>();
+        for (Path file : changed) {
+            if (file.getParent().equals(dataFolder) && fileId("product.data.file", file) != null
+                    && Files.isRegularFile(file)) {
+                Map.Entry<Product, List<Review>> entry = loadEntry(file, failedFiles);
+                if (entry != null && shardOf(entry.getKey().getId(), shardCount) != shardIndex) {
+                    logger.log(Level.WARNING, "Skipping product " + entry.getKey().getId() + " of " + file
+                            + ", whose name does not match its id");
+                } else if (entry != null) {
+                    products.put(entry.getKey().getId(), entry.getKey());
+                    productReviews.put(entry.getKey().getId(), entry.getValue());
+                }
+            }
+        }
+        for (Path file : changed) {
+            Integer id = file.getParent().equals(reportsFolder) ? fileId("reviews.data.file", file) : null;
+            // a reviews file written back by the review cache is already up to date
+            if (id != null && !productReviews.containsKey(id)
+                    && (cachedReviews == null || !cachedReviews.isWrittenBack(id))) {
+                Product product = readOptimistically(() -> store.get(id));
+                if (product == null) {
+                    logger.log(Level.WARNING, "Skipping reviews of unknown product " + id);
+                } else {
+                    productReviews.put(id, loadReviews(product));
+                }
+            }
+        }
+        if (productReviews.isEmpty()) {
+            return;
+        }
+        try {
+            writeLock.lock();
+            for (Map.Entry<Integer, List<Review>> entry : productReviews.entrySet()) {
+                int id = entry.getKey();
+                Product product = products.containsKey(id) ? products.get(id) : store.get(id);
+                if (product == null) {
+                    continue;
+                }
+                replaceProduct(product, entry.getValue());
+                // the write lock keeps the reload in order with the reviews journaled around it
+                if (journal != null) {
+                    journal.append(ReviewJournal.reloadRecord(id)).exceptionally(ex -> {
+                        logger.log(Level.SEVERE, "Error journaling reload of product " + id + " " + ex.getMessage());
+                        return null;
+                    });
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        logger.log(Level.INFO, "Reloaded " + productReviews.size() + " products from " + changed.size()
+                + " changed files in " + Duration.ofNanos(System.nanoTime() - start).toMillis() + " ms");
+    }
+
+    // re-rates a product by all its reviews, which replace those it had; the caller holds the write lock
+    private void replaceProduct(Product product, List<Review> productReviews) {
+        RatingAggregate ratings = RatingAggregate.of(productReviews);
+        Product rated = product.applyRating(ratings.getRating());
+        store.put(rated, ratings);
+        metrics.reviewsAdded(productReviews.size() - reviews.replace(rated.getId(), productReviews));
+        reportCache.invalidate(rated.getId(), formatters.keySet());
+        changes.productReplaced(rated, productReviews);
+    }
+
+    // the product id in the name of a data file, or null if the name does not follow the pattern
+    private Integer fileId(String pattern, Path file) {
+        String name = file.getFileName().toString();
+        MessageFormat format = new MessageFormat(config.getString(pattern));
+        try {
+            int id = NumberFormat.getIntegerInstance(format.getLocale())
+                    .parse((String) format.parse(name)[0]).intValue();
+            return name.equals(format.format(new Object[]{id})) ? id : null;
+        } catch (ParseException | ClassCastException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens the review journal, before the catalogue is loaded so that the
+     * load knows which journal generation the review index and the
+     * checkpoint refer to
+     */
+    private void openJournal() {
+        String journalFile = setting("journal.file", "");
+        if (journalFile.isBlank()) {
+            logger.log(Level.INFO, "Review journal is disabled");
+            return;
+        }
+        try {
+            journal = new ReviewJournal(reportsFolder.resolve(journalFile),
+                    Long.parseLong(setting("journal.sync.interval", "5")));
+            reviewIndex.setGeneration(journal.getGeneration());
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error opening review journal " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Applies the reviews journaled since the data files were written, or
+     * since the checkpoint, on top of the loaded catalogue
+     */
+    private void replayJournal() {
+        if (journal == null) {
+            return;
+        }
+        Checkpoint replayedOnto = checkpoint;
+        checkpoint = null;
+        try {
+            for (ProductManager partition : partitions) {
+                if (partition.cachedReviews != null) {
+                    partition.cachedReviews.trackJournal();
+                }
+            }
+            // a first pass finds how many journaled reviews of each product its reloaded reviews file replaced
+            IntObjectMap<int[]> reloaded = new IntObjectMap<>();
+            Set<Integer> reloadedIds = new LinkedHashSet<>();
+            journal.replay(new ReviewJournal.Replay() {
+                @Override
+                public void apply(int id, Rating rating, String comments) {
+                    journalRecords(reloaded, id)[0]++;
+                }
+
+                @Override
+                public void reloaded(int id) {
+                    int[] count = journalRecords(reloaded, id);
+                    count[1] = count[0];
+                    reloadedIds.add(id);
+                }
+            });
+            if (replayedOnto != null && journal.getGeneration() < replayedOnto.generation) {
+                // the dump stopped between writing the checkpoint and cutting back the journal
+                logger.log(Level.INFO, "Skipping the journaled reviews held by the checkpoint");
+                journal.checkpoint(replayedOnto.generation).join();
+                reviewIndex.setGeneration(replayedOnto.generation);
+            } else {
+                if (replayedOnto != null) {
+                    reloadCheckpointed(replayedOnto, reloadedIds);
+                }
+                replayRecords(reloaded);
+            }
+            journalShutdown = new Thread(journal::close, "review-journal-shutdown");
+            Runtime.getRuntime().addShutdownHook(journalShutdown);
+            if (shards != null) {
+                for (ProductManager shard : shards) {
+                    shard.journal = journal;
+                }
+            }
+        } catch (IOException | CompletionException ex) {
+            logger.log(Level.SEVERE, "Error replaying review journal " + ex.getMessage(), ex);
+            journal.close();
+            journal = null;
+        }
+    }
+
+    // the journaled reviews of each product that were written back to or replaced by its reviews file are skipped
+    private void replayRecords(IntObjectMap<int[]> reloaded) throws IOException {
+        IntObjectMap<int[]> records = new IntObjectMap<>();
+        AtomicInteger skipped = new AtomicInteger();
+        long replayed = journal.replay((id, rating, comments) -> {
+            int[] replaced = reloaded.get(id);
+            if (journalRecords(records, id)[0]++ < Math.max(reviewIndex.getJournaled(id), replaced[1])) {
+                skipped.incrementAndGet();
+            } else if (shardFor(id).store.get(id) == null) {
+                logger.log(Level.WARNING, "Skipping journaled review of unknown product " + id);
+            } else {
+                shardFor(id).addReview(id, rating, comments);
+            }
+        });
+        logger.log(Level.INFO, "Replayed " + (replayed - skipped.get()) + " journaled reviews"
+                + ((skipped.get() > 0) ? ", " + skipped.get() + " were already in the reviews files" : ""));
+    }
+
+    /**
+     * Reads the reviews files of the products reloaded since the checkpoint
+     * that the catalogue took the reviews of from the checkpoint, since the
+     * reload replaced them with the file even if it was written before the
+     * checkpoint
+     */
+    private void reloadCheckpointed(Checkpoint replayedOnto, Set<Integer> reloadedIds) {
+        for (int id : reloadedIds) {
+            ProductManager shard = shardFor(id);
+            Product product = shard.store.get(id);
+            if (product != null && replayedOnto.covers(id, reviewsFile(id))) {
+                try {
+                    shard.writeLock.lock();
+                    shard.replaceProduct(product, loadReviews(product));
+                } finally {
+                    shard.writeLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the checkpoint written by the last dump, when the journal has not
+     * started a later generation since
+     *
+     * @return the checkpoint, or {@code null} if there is none to load from
+     */
+    private Checkpoint readCheckpoint() {
+        Path file = checkpointFile();
+        if (journal == null || Files.notExists(file)) {
+            return null;
+        }
+        try {
+            int generation = CatalogueSnapshot.journalGeneration(file);
+            if (generation < journal.getGeneration()) {
+                logger.log(Level.INFO, "Ignoring the checkpoint of journal generation " + generation
+                        + ", the journal is at generation " + journal.getGeneration());
+                return null;
+            }
+            Map<Integer, List<Review>> reviews = new HashMap<>();
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                CatalogueSnapshot.read(in).forEach((product, productReviews)
+                        -> reviews.put(product.getId(), productReviews));
+            }
+            return new Checkpoint(generation, Files.getLastModifiedTime(file), reviews);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error reading journal checkpoint " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    // the journaled reviews of a product counted so far, and how many of them were replaced by a reload
+    private static int[] journalRecords(IntObjectMap<int[]> records, int id) {
+        int[] count = records.get(id);
+        if (count == null) {
+            count = new int[2];
+            records.put(id, count);
+        }
+        return count;
+    }
+
+    /**
+     * Describes the last time the catalogue was loaded from the data folder
+     *
+     * @return the load statistics
+     */
+    public LoadStatistics getLoadStatistics() {
+        return loadStatistics;
+    }
+
+    /**
+     * Takes a snapshot of the operation counts and latencies, lock waits and
+     * holds, catalogue size and report output of this product manager, the
+     * same metrics it publishes through JMX
+     *
+     * @return the metrics
+     */
+    public MetricsSnapshot getMetrics() {
+        return metrics.getMetrics();
+    }
+
+    /**
+     * Creates a read only replica of the catalogue, to serve product
+     * listings, discounts and reports apart from the writes
+     * <br>
+     * The replica starts from a copy of the catalogue and applies every
+     * later change in the order it was made, on a thread of its own. Its reads
+     * first wait for the changes published more than
+     * {@code replica.max.staleness} milliseconds ago, and its writes throw
+     * {@code UnsupportedOperationException}. A replica that falls more than
+     * {@code replica.max.backlog} changes behind copies the catalogue again
+     * <br>
+     * The catalogue is copied while all its writes wait, so a catalogue that
+     * loads its reviews lazily cannot be replicated: copying it would read
+     * every reviews file under the locks
+     *
+     * @return the replica, to be shut down when it is no longer used
+     * @throws UnsupportedOperationException if {@code reviews.lazy} is set
+     */
+    public ProductManager createReplica() {
+        if (primary != null) {
+            return primary.createReplica();
+        }
+        if (lazyReviews) {
+            throw new UnsupportedOperationException("A catalogue with lazily loaded reviews cannot be replicated");
+        }
+        return new ProductManager(settings, null, 0, this);
+    }
+
+    /**
+     * Copies the catalogue into a replica and subscribes the replica to the
+     * changes made after the copy
+     */
+    private ChangeStream.Subscription replicate(ProductManager replica) {
+        try {
+            lockShards();
+            replica.copiedSequence = copyTo(replica);
+            return changes.subscribe("catalogue-replica-" + replicaCount.incrementAndGet(),
+                    Integer.parseInt(setting("replica.max.backlog", "100000")), replica::applyChanges);
+        } finally {
+            unlockShards();
+        }
+    }
+
+    /**
+     * Replaces the catalogue of a replica with a copy of this catalogue
+     * <br>
+     * The caller holds the write locks of all the shards, so no change is
+     * published during the copy
+     *
+     * @return the last change the copy includes
+     */
+    private long copyTo(ProductManager replica) {
+        Map<Product, List<Review>> products = new HashMap<>();
+        for (Product product : allProducts()) {
+            products.put(product, shardFor(product.getId()).reviews.get(product.getId()));
+        }
+        replica.install(products);
+        return changes.getSequence();
+    }
+
+    // applies a batch of changes of the primary to this replica, taking its write lock once for every 4096 changes
+    private void applyChanges(List<CatalogueChange> batch) {
+        for (int from = 0; from < batch.size(); from += BATCH_CHUNK) {
+            try {
+                writeLock.lock();
+                for (CatalogueChange change : batch.subList(from, Math.min(from + BATCH_CHUNK, batch.size()))) {
+                    applyChange(change);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    // the caller holds the write lock of the replica
+    private void applyChange(CatalogueChange change) {
+        if (change.getSequence() <= copiedSequence) {
+            return;
+        }
+        switch (change.getType()) {
+            case PRODUCT_CREATED:
+                store.add(change.getProduct(), new RatingAggregate());
+                break;
+            case REVIEW_ADDED:
+                addReview(change.getProductId(), change.getRating(), change.getComments());
+                break;
+            case PRODUCT_REPLACED:
+                replaceProduct(change.getProduct(), change.getReviews());
+                break;
+            default:
+                // the primary was restored or dumped, so its catalogue is copied again
+                try {
+                    primary.lockShards();
+                    copiedSequence = primary.copyTo(this);
+                } finally {
+                    primary.unlockShards();
+                }
+        }
+    }
+
+    // a replica first applies the changes older than its staleness bound
+    private void awaitReplication() {
+        if (replication != null) {
+            replication.awaitApplied(maxStalenessNanos);
+        }
+    }
+
+    private void checkWritable() {
+        if (primary != null) {
+            throw new UnsupportedOperationException("A replica of the catalogue is read only");
+        }
+        IOException failure = (journal == null) ? null : journal.failure();
+        if (failure != null) {
+            throw new UncheckedIOException("The catalogue is read only since the review journal failed", failure);
+        }
+    }
+
+    private void registerMBean() {
+        String name = setting("jmx.name", "");
+        if (name.isBlank()) {
+            return;
+        }
+        try {
+            mbeanName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbeanName);
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Error registering metrics as " + name + " " + ex.getMessage());
+            mbeanName = null;
+        }
+    }
+
+    // explicit settings come first, then system properties prefixed with
+    // labs.pm. and then the config bundle
+    private String setting(String key, String defaultValue) {
+        String value = settings.get(key);
+        if (value == null) {
+            value = System.getProperty("labs.pm." + key);
+        }
+        if (value == null) {
+            value = config.containsKey(key) ? config.getString(key) : defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the catalogue with loaded or restored products and their
+     * reviews
+     *
+     * @param products the products and their reviews
+     */
+    private void install(Map<Product, List<Review>> products) {
+        long loaded = products.values().stream().mapToLong(List::size).sum();
+        // the metrics of a sharded catalogue count the reviews of all its shards
+        metrics.reviewsAdded(loaded - reviews.size());
+        reportCache.clear();
+        store.clear();
+        reviews.clear();
+        products.forEach((product, productReviews) -> {
+            try {
+                if (store.add(product, RatingAggregate.of(productReviews))) {
+                    reviews.replace(product.getId(), productReviews);
+                }
+            } catch (IllegalArgumentException ex) {
+                logger.log(Level.WARNING, "Error adding product " + ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Replaces the catalogue of every shard with the loaded or restored
+     * products it owns, installing the shards in parallel
+     *
+     * @param products the products and their reviews
+     */
+    private void installAll(Map<Product, List<Review>> products) {
+        List<Map<Product, List<Review>>> parts = partition(products);
+        IntStream.range(0, parts.size()).parallel()
+                .forEach(i -> partitions.get(i).install(parts.get(i)));
+        changes.catalogueReplaced();
+    }
+
+    // splits products by the shard that owns them
+    private <T> List<Map<Product, T>> partition(Map<Product, T> products) {
+        if (shards == null) {
+            return List.of(products);
+        }
+        List<Map<Product, T>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new HashMap<>());
+        }
+        products.forEach((product, value) -> parts.get(shardOf(product.getId(), shards.length)).put(product, value));
+        return parts;
+    }
+
+    /**
+     * Replaces the catalogue with loaded products whose reviews are left in
+     * their files until they are needed
+     *
+     * @param products the products and the ratings of their reviews
+     */
+    private void installRatings(Map<Product, RatingAggregate> products) {
+        long loaded = products.values().stream().mapToLong(RatingAggregate::getCount).sum();
+        metrics.reviewsAdded(loaded - reviews.size());
+        reportCache.clear();
+        store.clear();
+        reviews.clear();
+        products.forEach((product, ratings) -> {
+            try {
+                if (store.add(product, ratings)) {
+                    cachedReviews.open(product.getId(), ratings.getCount());
+                }
+            } catch (IllegalArgumentException ex) {
+                logger.log(Level.WARNING, "Error adding product " + ex.getMessage());
+            }
+        });
+    }
+
+    // the catalogue.store setting chooses how the products are kept in memory
+    private static ProductStore createStore(String type) {
+        switch (type) {
+            case "objects":
+                return new ObjectProductStore();
+            case "columns":
+                return new ColumnarProductStore();
+            default:
+                throw new IllegalArgumentException("Unknown catalogue store " + type);
+        }
+    }
+
+    public Map<String, String> getDiscounts(String languageTag) {
+        long start = System.nanoTime();
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("es-ES"));
+        Map<String, String> totals = new HashMap<>();
+        LocalTime now = LocalTime.now();
+        Map<Rating, BigDecimal> discounts = new EnumMap<>(Rating.class);
+        gather(partition -> partition.readOptimistically(() -> partition.store.getDiscountTotals(now)))
+                .forEach(shardTotals -> shardTotals.forEach(
+                        (rating, discount) -> discounts.merge(rating, discount, BigDecimal::add)));
+        discounts.forEach((rating, discount) -> totals.put(rating.getStars(), formatter.formatMoney(discount)));
+        metrics.discounts.record(ProductManagerMetrics.since(start));
+        return totals;
+    }
+
+    /**
+     * The reviews files in the reports folder, read and written back by the
+     * review cache
+     */
+    private class ReviewFilesInFolder implements CachedReviewStore.ReviewFiles {
+
+        @Override
+        public Path file(int id) {
+            return reviewsFile(id);
+        }
+
+        @Override
+        public List<Review> read(Path file) {
+            return loadReviews(file);
+        }
+
+        @Override
+        public void write(Path file, List<Review> reviews) throws IOException {
+            writeReviews(file, reviews);
+        }
+    }
+
+    /**
+     * The reviews of the catalogue when it was last dumped, which the journal
+     * of the same generation holds the later reviews of
+     */
+    private static class Checkpoint {
+
+        private final int generation;
+        private final FileTime written;
+        private final Map<Integer, List<Review>> reviews;
+
+        private Checkpoint(int generation, FileTime written, Map<Integer, List<Review>> reviews) {
+            this.generation = generation;
+            this.written = written;
+            this.reviews = reviews;
+        }
+
+        // whether the checkpoint holds reviews of a product that are newer than its reviews file
+        private boolean covers(int id, Path reviewsFile) {
+            if (!reviews.containsKey(id)) {
+                return false;
+            }
+            try {
+                return Files.notExists(reviewsFile) || Files.getLastModifiedTime(reviewsFile).compareTo(written) <= 0;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The state of a product a report is rendered from, either the rendered
+     * report when it is cached or a private copy of the reviews
+     */
+    private static class ReportSource {
+
+        private final Product product;
+        private final long version;
+        // the day the product was read, which its best before date and discount depend on
+        private final long day;
+        private final List<Review> reviews;
+        private final String report;
+
+        private ReportSource(Product product, long version, long day, List<Review> reviews, String report) {
+            this.product = product;
+            this.version = version;
+            this.day = day;
+            this.reviews = reviews;
+            this.report = report;
+        }
+    }
+
+    /**
+     * Creates the instance when it is first requested, after
+     * {@code ProductManager} itself is initialized, so that the threads that
+     * load the data can use its static members without waiting for the class
+     * initialization that started them
+     */
+    private static class Holder {
+
+        private static final ProductManager pm = new ProductManager();
+    }
+
+    /**
+     * Formats products and reviews for one locale
+     * <br>
+     * The resource patterns are parsed once into templates and the values are
+     * appended straight into the caller's {@code StringBuilder}. Templates and
+     * date formats are immutable, while {@code NumberFormat}, which is not
+     * thread safe, is lent to one thread at a time from a small pool of copies
+     */
     private static class ResourceFormatter {
 
-        private Locale locale;
-        private ResourceBundle resources;
-        private DateTimeFormatter dateFormat;
-        private NumberFormat moneyFormat;
+        private static final int MONEY_FORMATS = 16;
+
+        private final Locale locale;
+        private final ResourceBundle resources;
+        private final DateTimeFormatter dateFormat;
+        private final NumberFormat currency;
+        // reusable copies of the currency format, which is not thread safe; a slot is empty while its copy is used
+        private final AtomicReferenceArray<MoneyFormat> moneyFormats = new AtomicReferenceArray<>(MONEY_FORMATS);
+        private final MessageTemplate productTemplate;
+        private final MessageTemplate reviewTemplate;
 
         private ResourceFormatter(Locale locale) {
             this.locale = locale;
             resources = ResourceBundle.getBundle("labs.pm.data.resources", locale);
             dateFormat = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale);
-            moneyFormat = NumberFormat.getCurrencyInstance(locale);
-
+            currency = NumberFormat.getCurrencyInstance(locale);
+            productTemplate = MessageTemplate.compile(resources.getString("product"));
+            reviewTemplate = MessageTemplate.compile(resources.getString("review"));
         }
 
         private String formatProduct(Product product) {
-            return MessageFormat.format(resources.getString("product"),
-                    product.getName(),
-                    moneyFormat.format(product.getPrice()),
-                    product.getRating().getStars(),
-                    dateFormat.format(product.getBestBefore()));
+            return appendProduct(product, new StringBuilder()).toString();
         }
 
         private String formatReview(Review review) {
-            return MessageFormat.format(resources.getString("review"),
-                    review.getRating().getStars(),
-                    review.getComments());
+            return appendReview(review, new StringBuilder()).toString();
+        }
+
+        private StringBuilder appendProduct(Product product, StringBuilder txt) {
+            for (int i = 0; i < productTemplate.size(); i++) {
+                txt.append(productTemplate.literal(i));
+                switch (productTemplate.argument(i)) {
+                    case 0:
+                        txt.append(product.getName());
+                        break;
+                    case 1:
+                        appendMoney(product.getPrice(), txt);
+                        break;
+                    case 2:
+                        txt.append(product.getRating().getStars());
+                        break;
+                    case 3:
+                        dateFormat.formatTo(product.getBestBefore(), txt);
+                        break;
+                }
+            }
+            return txt.append(productTemplate.tail());
+        }
+
+        private StringBuilder appendReview(Review review, StringBuilder txt) {
+            for (int i = 0; i < reviewTemplate.size(); i++) {
+                txt.append(reviewTemplate.literal(i));
+                switch (reviewTemplate.argument(i)) {
+                    case 0:
+                        txt.append(review.getRating().getStars());
+                        break;
+                    case 1:
+                        txt.append(review.getComments());
+                        break;
+                }
+            }
+            return txt.append(reviewTemplate.tail());
+        }
+
+        /**
+         * Formats with a copy of the currency format taken from the pool, so
+         * that a virtual thread per report does not clone a format of its own
+         */
+        private StringBuilder appendMoney(Number amount, StringBuilder txt) {
+            int first = ThreadLocalRandom.current().nextInt(MONEY_FORMATS);
+            MoneyFormat format = null;
+            for (int i = 0; format == null && i < MONEY_FORMATS; i++) {
+                format = moneyFormats.getAndSet((first + i) % MONEY_FORMATS, null);
+            }
+            if (format == null) {
+                format = new MoneyFormat((NumberFormat) currency.clone());
+            }
+            format.appendTo(amount, txt);
+            for (int i = 0; i < MONEY_FORMATS; i++) {
+                if (moneyFormats.compareAndSet((first + i) % MONEY_FORMATS, null, format)) {
+                    break;
+                }
+            }
+            return txt;
+        }
+
+        private String formatMoney(Number amount) {
+            return appendMoney(amount, new StringBuilder()).toString();
         }
 
         private String getText(String key) {
@@ -494,4 +2301,24 @@ public class ProductManager {
         }
     }
 
+    /**
+     * A currency format with the buffer it formats into, owned by one thread
+     */
+    private static class MoneyFormat {
+
+        private final NumberFormat format;
+        private final StringBuffer buffer = new StringBuffer();
+        private final FieldPosition position = new FieldPosition(0);
+
+        private MoneyFormat(NumberFormat format) {
+            this.format = format;
+        }
+
+        private StringBuilder appendTo(Number amount, StringBuilder txt) {
+            buffer.setLength(0);
+            format.format(amount, buffer, position);
+            return txt.append(buffer);
+        }
+    }
+
 }
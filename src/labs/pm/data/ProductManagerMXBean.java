@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+/**
+ * {@code ProductManagerMXBean} exposes the metrics of the product manager
+ * through JMX, under the name given by the {@code jmx.name} setting
+ *
+ * @author richa
+ */
+public interface ProductManagerMXBean {
+
+    int getProducts();
+
+    long getReviews();
+
+    long getReportBytesWritten();
+
+    /**
+     * Takes a snapshot of all the metrics
+     *
+     * @return the metrics
+     */
+    MetricsSnapshot getMetrics();
+
+    /**
+     * Forgets the latencies recorded so far, the counters of the catalogue
+     * are kept
+     */
+    void resetLatencies();
+}
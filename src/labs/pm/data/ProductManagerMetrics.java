@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * {@code ProductManagerMetrics} records what a product manager does, with
+ * striped counters and histograms so that recording does not add contention
+ * of its own, and publishes it as the product manager MXBean
+ *
+ * @author richa
+ */
+final class ProductManagerMetrics implements ProductManagerMXBean {
+
+    final LatencyHistogram create = new LatencyHistogram();
+    final LatencyHistogram review = new LatencyHistogram();
+    final LatencyHistogram find = new LatencyHistogram();
+    final LatencyHistogram report = new LatencyHistogram();
+    final LatencyHistogram discounts = new LatencyHistogram();
+    final LatencyHistogram readLockWait = new LatencyHistogram();
+    final LatencyHistogram readLockHold = new LatencyHistogram();
+    final LatencyHistogram writeLockWait = new LatencyHistogram();
+    final LatencyHistogram writeLockHold = new LatencyHistogram();
+    volatile long lastLoad;
+    volatile long lastDump;
+    volatile long lastRestore;
+    private final LongAdder reviews = new LongAdder();
+    private final LongAdder reportBytes = new LongAdder();
+    private final IntSupplier products;
+
+    /**
+     * @param products counts the products of the catalogue
+     */
+    ProductManagerMetrics(IntSupplier products) {
+        this.products = products;
+    }
+
+    void reviewAdded() {
+        reviews.increment();
+    }
+
+    /**
+     * Counts reviews added, or removed when the count is negative, for
+     * example when the reviews of a shard are replaced
+     */
+    void reviewsAdded(long count) {
+        reviews.add(count);
+    }
+
+    void reportWritten(long bytes) {
+        reportBytes.add(bytes);
+    }
+
+    static long since(long start) {
+        return System.nanoTime() - start;
+    }
+
+    @Override
+    public int getProducts() {
+        return products.getAsInt();
+    }
+
+    @Override
+    public long getReviews() {
+        return reviews.sum();
+    }
+
+    @Override
+    public long getReportBytesWritten() {
+        return reportBytes.sum();
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return new MetricsSnapshot(this);
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : new LatencyHistogram[]{create, review, find, report, discounts,
+            readLockWait, readLockHold, writeLockWait, writeLockHold}) {
+            histogram.reset();
+        }
+    }
+}
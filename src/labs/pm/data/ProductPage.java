@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.List;
+
+/**
+ * {@code ProductPage} is one page of a product listing, with the cursor that
+ * continues the listing after it
+ *
+ * @author richa
+ */
+public final class ProductPage {
+
+    private final List<Product> products;
+    private final String nextCursor;
+
+    ProductPage(List<Product> products, String nextCursor) {
+        this.products = List.copyOf(products);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    /**
+     * The cursor to pass to get the next page
+     *
+     * @return the cursor or {@code null} if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
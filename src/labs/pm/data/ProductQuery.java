@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * {@code ProductQuery} selects and orders products of the catalogue
+ * <br>
+ * Price, rating and best before ranges and the orders by those values are
+ * answered from the indexes the product manager keeps, any other filter is
+ * applied to the products the indexes return. With a limit, an indexed order
+ * stops after the first products and a custom order keeps only the best ones
+ * instead of sorting everything
+ * <br>
+ * Usage: {@code ProductQuery.all().priceBetween(BigDecimal.ONE,
+ * BigDecimal.TEN).orderBy(ProductQuery.Order.RATING).descending().limit(5)}
+ * <br>
+ * A query is set up by one thread and then passed to the product manager
+ *
+ * @author richa
+ */
+public final class ProductQuery {
+
+    /**
+     * The indexed orders, products with equal values are ordered by id
+     */
+    public enum Order {
+        PRICE, RATING, BEST_BEFORE
+    }
+
+    private BigDecimal minPrice;
+    private BigDecimal maxPrice;
+    private Rating minRating;
+    private Rating maxRating;
+    private LocalDate bestBeforeFrom;
+    private LocalDate bestBeforeTo;
+    private Predicate<Product> filter;
+    private Order order;
+    private boolean descending;
+    private Comparator<Product> sorter;
+    private int limit = Integer.MAX_VALUE;
+
+    private ProductQuery() {
+    }
+
+    public static ProductQuery all() {
+        return new ProductQuery();
+    }
+
+    /**
+     * Keeps the products priced within a range, bounds included
+     *
+     * @param min the lowest price or {@code null}
+     * @param max the highest price or {@code null}
+     * @return this query
+     */
+    public ProductQuery priceBetween(BigDecimal min, BigDecimal max) {
+        minPrice = min;
+        maxPrice = max;
+        return this;
+    }
+
+    public ProductQuery ratingBetween(Rating min, Rating max) {
+        minRating = min;
+        maxRating = max;
+        return this;
+    }
+
+    /**
+     * Keeps the products best before a date within a range, drinks being best
+     * before today
+     *
+     * @param from the first date or {@code null}
+     * @param to the last date or {@code null}
+     * @return this query
+     */
+    public ProductQuery bestBeforeBetween(LocalDate from, LocalDate to) {
+        bestBeforeFrom = from;
+        bestBeforeTo = to;
+        return this;
+    }
+
+    public ProductQuery filter(Predicate<Product> filter) {
+        this.filter = (this.filter == null) ? filter : this.filter.and(filter);
+        return this;
+    }
+
+    public ProductQuery orderBy(Order order) {
+        this.order = order;
+        this.sorter = null;
+        return this;
+    }
+
+    /**
+     * Orders the products with a comparator, which cannot use the indexes
+     *
+     * @param sorter the order of the products
+     * @return this query
+     */
+    public ProductQuery sortedBy(Comparator<Product> sorter) {
+        this.sorter = sorter;
+        this.order = null;
+        return this;
+    }
+
+    public ProductQuery descending() {
+        descending = true;
+        return this;
+    }
+
+    public ProductQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    boolean matches(Product product) {
+        BigDecimal price = product.getPrice();
+        Rating rating = product.getRating();
+        LocalDate bestBefore = product.getBestBefore();
+        return (minPrice == null || price.compareTo(minPrice) >= 0)
+                && (maxPrice == null || price.compareTo(maxPrice) <= 0)
+                && (minRating == null || rating.compareTo(minRating) >= 0)
+                && (maxRating == null || rating.compareTo(maxRating) <= 0)
+                && (bestBeforeFrom == null || !bestBefore.isBefore(bestBeforeFrom))
+                && (bestBeforeTo == null || !bestBefore.isAfter(bestBeforeTo))
+                && (filter == null || filter.test(product));
+    }
+
+    boolean hasFilter() {
+        return filter != null;
+    }
+
+    boolean hasSorter() {
+        return sorter != null;
+    }
+
+    /**
+     * Picks the products of a page from the candidates of an index scan,
+     * keeping those that match and, when the query has a comparator, only
+     * those that come after the last product of the previous page
+     *
+     * @param candidates the products to choose from, in the order of the
+     * query unless it has a comparator
+     * @param after the last product of the previous page or {@code null}
+     * @param limit the maximum number of products
+     * @param distinct {@code true} if the same product may be met twice
+     * @return the products of the page in order
+     */
+    List<Product> select(Iterator<Product> candidates, Product after, int limit, boolean distinct) {
+        IntObjectMap<Product> seen = distinct ? new IntObjectMap<>() : null;
+        // ties are ordered by id, so that a page ends at a definite product
+        Comparator<Product> order = (sorter == null) ? null : getSorter().thenComparingInt(Product::getId);
+        if (order == null || limit == Integer.MAX_VALUE) {
+            List<Product> result = new ArrayList<>();
+            while ((order != null || result.size() < limit) && candidates.hasNext()) {
+                Product product = candidates.next();
+                if (matches(product) && (seen == null || seen.put(product.getId(), product) == null)
+                        && (order == null || after == null || order.compare(product, after) > 0)) {
+                    result.add(product);
+                }
+            }
+            if (order != null) {
+                result.sort(order);
+            }
+            return result;
+        }
+        // a top K keeps the best products in a heap whose head is the worst of them
+        PriorityQueue<Product> best = new PriorityQueue<>(order.reversed());
+        while (candidates.hasNext()) {
+            Product product = candidates.next();
+            if (matches(product) && (seen == null || seen.put(product.getId(), product) == null)
+                    && (after == null || order.compare(product, after) > 0)) {
+                best.add(product);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<Product> result = new ArrayList<>(best);
+        result.sort(order);
+        return result;
+    }
+
+    /**
+     * The order the products found by the query come in, so that the
+     * products found in several shards can be merged
+     * <br>
+     * Drinks are best before today and come after the food that is best
+     * before today
+     *
+     * @return the order of the results, or {@code null} if the query has no
+     * order and the products come in the order of the store
+     */
+    Comparator<Product> getResultOrder() {
+        if (sorter != null) {
+            return getSorter().thenComparingInt(Product::getId);
+        }
+        if (order == null) {
+            return null;
+        }
+        Comparator<Product> result;
+        switch (order) {
+            case PRICE:
+                result = Comparator.comparing(Product::getPrice);
+                break;
+            case RATING:
+                result = Comparator.comparing(Product::getRating);
+                break;
+            default:
+                result = Comparator.comparing(Product::getBestBefore)
+                        .thenComparing(product -> product instanceof Drink);
+        }
+        result = result.thenComparingInt(Product::getId);
+        return descending ? result.reversed() : result;
+    }
+
+    BigDecimal getMinPrice() {
+        return minPrice;
+    }
+
+    BigDecimal getMaxPrice() {
+        return maxPrice;
+    }
+
+    Rating getMinRating() {
+        return minRating;
+    }
+
+    Rating getMaxRating() {
+        return maxRating;
+    }
+
+    LocalDate getBestBeforeFrom() {
+        return bestBeforeFrom;
+    }
+
+    LocalDate getBestBeforeTo() {
+        return bestBeforeTo;
+    }
+
+    Order getOrder() {
+        return order;
+    }
+
+    boolean isDescending() {
+        return descending;
+    }
+
+    Comparator<Product> getSorter() {
+        return (sorter == null || !descending) ? sorter : sorter.reversed();
+    }
+
+    int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * {@code ProductSpec} describes a product to be created by
+ * {@link ProductManager#createProducts(java.util.Collection)}
+ *
+ * @author richa
+ */
+public final class ProductSpec {
+
+    private final int id;
+    private final String name;
+    private final BigDecimal price;
+    private final Rating rating;
+    private final LocalDate bestBefore;
+    private final boolean food;
+
+    private ProductSpec(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore, boolean food) {
+        this.id = id;
+        this.name = name;
+        this.price = price;
+        this.rating = rating;
+        this.bestBefore = bestBefore;
+        this.food = food;
+    }
+
+    public static ProductSpec food(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
+        return new ProductSpec(id, name, price, rating, bestBefore, true);
+    }
+
+    public static ProductSpec drink(int id, String name, BigDecimal price, Rating rating) {
+        return new ProductSpec(id, name, price, rating, null, false);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    Product toProduct() {
+        return food ? new Food(id, name, price, rating, bestBefore) : new Drink(id, name, price, rating);
+    }
+
+    @Override
+    public String toString() {
+        return (food ? "Food " : "Drink ") + id + " " + name;
+    }
+}
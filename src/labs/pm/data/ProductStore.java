@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code ProductStore} holds the products of the catalogue together with the
+ * aggregates of their review ratings, and answers queries and discount
+ * totals over them
+ * <br>
+ * Products are added and the store is cleared under the write lock of the
+ * {@link ProductManager}, which holds every lock stripe with it. Ratings are
+ * added under the lock stripe of the product, so a store only has to cope
+ * with concurrent ratings of different products
+ * <br>
+ * Products, queries and discount totals are also read optimistically without
+ * any lock. Such a read may overlap a writer, and then its result or
+ * exception is discarded, but it must still return or throw rather than loop
+ *
+ * @author richa
+ */
+interface ProductStore extends Iterable<Product> {
+
+    /**
+     * Finds a product
+     *
+     * @param id the product id
+     * @return the product or {@code null}
+     */
+    Product get(int id);
+
+    /**
+     * Adds a product unless one with the same id is already stored
+     *
+     * @param product the product
+     * @param ratings the ratings of its reviews
+     * @return {@code false} if the id was already stored
+     */
+    boolean add(Product product, RatingAggregate ratings);
+
+    /**
+     * Adds a product, or replaces the stored product with the same id and
+     * the ratings of its reviews
+     *
+     * @param product the product
+     * @param ratings the ratings of its reviews
+     */
+    void put(Product product, RatingAggregate ratings);
+
+    /**
+     * Adds the ratings of new reviews to a stored product, and re-rates the
+     * product once when its average rating changes
+     *
+     * @param id the product id
+     * @param ratingSum the sum of the rating ordinals of the reviews
+     * @param ratingCount the number of reviews
+     * @return the product as rated after the reviews
+     */
+    Product addRatings(int id, long ratingSum, int ratingCount);
+
+    /**
+     * The version of the reviews of a product, which changes every time a
+     * rating is added
+     * <br>
+     * Versions are drawn from a counter of the store, so that the stores of
+     * different shards do not share one
+     * <br>
+     * A new version is published after the rating it stands for, so a
+     * reader that reads the version before the product never caches an old
+     * product under a new version
+     *
+     * @param id the product id
+     * @return the version, or -1 if there is no product with the id
+     */
+    long getVersion(int id);
+
+    int size();
+
+    void clear();
+
+    /**
+     * Runs a query from where a previous page of it ended
+     *
+     * @param query the query
+     * @param after the last product of the previous page or {@code null}
+     * @param limit the maximum number of products
+     * @return the matching products in order
+     */
+    List<Product> query(ProductQuery query, Product after, int limit);
+
+    /**
+     * Sums the discounts that apply at a given time of today, for each rating
+     * of at least one product
+     *
+     * @param time the time of day
+     * @return the discount totals per rating
+     */
+    Map<Rating, BigDecimal> getDiscountTotals(LocalTime time);
+
+    /**
+     * Stops any background work of the store
+     */
+    void close();
+}
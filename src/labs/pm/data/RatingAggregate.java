@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.List;
+
+/**
+ * {@code RatingAggregate} keeps the running sum and count of the review
+ * ratings of one product, so that the average rating can be updated in
+ * constant time when a review is added
+ * <br>
+ * The aggregate also carries the version of the product reviews, which the
+ * {@link ProductStore} holding it draws from a counter of its own every time
+ * a review is added or the aggregate is replaced, so a version is never
+ * reused within the store, not even after the catalogue is reloaded. The
+ * version is volatile and set after the rating it stands for
+ *
+ * @author richa
+ */
+final class RatingAggregate {
+
+    private long sum;
+    private int count;
+    private volatile long version;
+
+    RatingAggregate() {
+    }
+
+    static RatingAggregate of(List<Review> reviews) {
+        RatingAggregate aggregate = new RatingAggregate();
+        for (Review review : reviews) {
+            aggregate.sum += review.getRating().ordinal();
+            aggregate.count++;
+        }
+        return aggregate;
+    }
+
+    /**
+     * Adds a review rating to the aggregate
+     *
+     * @param rating the rating of the new review
+     * @return the average rating after adding the review
+     */
+    Rating add(Rating rating) {
+        return add(rating.ordinal(), 1);
+    }
+
+    /**
+     * Adds a number of review ratings to the aggregate at once
+     *
+     * @param ratingSum the sum of the rating ordinals
+     * @param ratingCount the number of ratings
+     * @return the average rating after adding the reviews
+     */
+    Rating add(long ratingSum, int ratingCount) {
+        sum += ratingSum;
+        count += ratingCount;
+        return getRating();
+    }
+
+    /**
+     * Rounds the average of all the aggregated ratings
+     *
+     * @return the average rating, or {@link Rating#NOT_RATED} if there are
+     * no reviews
+     */
+    Rating getRating() {
+        return average(sum, count);
+    }
+
+    /**
+     * Rounds the average of a number of ratings
+     *
+     * @param sum the sum of the rating ordinals
+     * @param count the number of ratings
+     * @return the average rating, or {@link Rating#NOT_RATED} if there are
+     * no ratings
+     */
+    static Rating average(long sum, int count) {
+        return Rateable.convert(count == 0 ? 0 : (int) Math.round((double) sum / count));
+    }
+
+    long getSum() {
+        return sum;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+}
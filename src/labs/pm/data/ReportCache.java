@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code ReportCache} keeps the most recently used product reports, rendered
+ * for one language, together with the version of the product reviews and the
+ * day they were rendered from
+ * <br>
+ * A cached report is only returned for the same version, so a report rendered
+ * from reviews that changed in the meantime is never served, even if it was
+ * stored after the product was invalidated. It is only returned on the same
+ * day, since the best before date and discount of a product depend on it
+ *
+ * @author richa
+ */
+final class ReportCache {
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, Report> reports;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ReportCache(int capacity) {
+        this.capacity = capacity;
+        reports = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Report> eldest) {
+                if (size() > ReportCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Finds a report rendered from the given version of a product
+     *
+     * @param id the product id
+     * @param version the current version of the product reviews
+     * @param day the current epoch day
+     * @param languageTag the language of the report
+     * @return the rendered report or {@code null}
+     */
+    String get(int id, long version, long day, String languageTag) {
+        Report report;
+        try {
+            lock.lock();
+            report = reports.get(new Key(id, languageTag));
+        } finally {
+            lock.unlock();
+        }
+        if (report != null && report.version == version && report.day == day) {
+            hits.increment();
+            return report.text;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a report
+     *
+     * @param day the epoch day taken before the report was rendered, so a
+     * report rendered across midnight is not served on the next day
+     */
+    void put(int id, long version, long day, String languageTag, String text) {
+        if (capacity <= 0) {
+            return;
+        }
+        try {
+            lock.lock();
+            Key key = new Key(id, languageTag);
+            Report current = reports.get(key);
+            // a slow render of an older version must not replace a newer one
+            if (current == null || current.version < version
+                    || (current.version == version && current.day < day)) {
+                reports.put(key, new Report(version, day, text));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the reports of a product that changed
+     *
+     * @param id the product id
+     * @param languageTags the languages reports can be rendered in
+     */
+    void invalidate(int id, Set<String> languageTags) {
+        try {
+            lock.lock();
+            languageTags.forEach(languageTag -> reports.remove(new Key(id, languageTag)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        try {
+            lock.lock();
+            reports.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ReportCacheStatistics getStatistics() {
+        int size;
+        try {
+            lock.lock();
+            size = reports.size();
+        } finally {
+            lock.unlock();
+        }
+        return new ReportCacheStatistics(hits.sum(), misses.sum(), evictions.sum(), size, capacity);
+    }
+
+    private static final class Key {
+
+        private final int id;
+        private final String languageTag;
+
+        private Key(int id, String languageTag) {
+            this.id = id;
+            this.languageTag = languageTag;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + languageTag.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return id == other.id && languageTag.equals(other.languageTag);
+            }
+            return false;
+        }
+    }
+
+    private static final class Report {
+
+        private final long version;
+        private final long day;
+        private final String text;
+
+        private Report(long version, long day, String text) {
+            this.version = version;
+            this.day = day;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code ReportService} runs report jobs on a fixed pool of writer threads fed
+ * by a bounded queue
+ * <br>
+ * When the queue is full new jobs are rejected instead of being run by the
+ * caller, so that report formatting and file output never happen on the
+ * thread that requested the report
+ * <br>
+ * With virtual threads each job gets a thread of its own, and the queue
+ * capacity bounds the number of jobs in progress instead
+ *
+ * @author richa
+ */
+final class ReportService {
+
+    private final ExecutorService executor;
+    private final Semaphore jobs;
+
+    ReportService(int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        jobs = null;
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                job -> {
+                    Thread thread = new Thread(job, "report-writer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Creates a report service that runs each job on a virtual thread
+     *
+     * @param capacity the maximum number of jobs in progress
+     */
+    ReportService(int capacity) {
+        jobs = new Semaphore(capacity);
+        executor = VirtualThreads.newThreadPerTaskExecutor();
+    }
+
+    /**
+     * Queues a report job
+     *
+     * @param <T> the type of the job result
+     * @param job the job to run
+     * @return a future completed with the result of the job
+     */
+    <T> CompletableFuture<T> submit(Callable<T> job) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (jobs != null && !jobs.tryAcquire()) {
+            result.completeExceptionally(new ProductManagerException("Report queue is full"));
+            return result;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(job.call());
+                } catch (Exception ex) {
+                    result.completeExceptionally(ex);
+                } finally {
+                    if (jobs != null) {
+                        jobs.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (jobs != null) {
+                jobs.release();
+            }
+            result.completeExceptionally(new ProductManagerException("Report queue is full", ex));
+        }
+        return result;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
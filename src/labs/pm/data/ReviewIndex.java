@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code ReviewIndex} persists what the reviews file of each product holds:
+ * the sum and count of its ratings, and how many of the journaled reviews of
+ * the product it already contains
+ * <br>
+ * The index lets a catalogue rate its products at startup without reading
+ * their reviews, and lets the journal replay skip the reviews that were
+ * written back to the reviews files
+ * <br>
+ * Each line holds {@code id,sum,count,journaled,generation} and a later
+ * line of the same product overrides an earlier one, so an entry is updated
+ * by appending a line. The file is rewritten with one line per product once
+ * the appended lines outnumber the products
+ * <br>
+ * The journaled count of an entry refers to the journal generation it was
+ * written in, and counts as none once the journal starts a new generation
+ *
+ * @author richa
+ */
+final class ReviewIndex {
+
+    private static final Logger logger = Logger.getLogger(ReviewIndex.class.getName());
+    private static final int MIN_APPENDED_LINES = 1024;
+
+    private final Path file;
+    private final FileTime modified;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final IntObjectMap<Entry> entries = new IntObjectMap<>();
+    private int appended;
+    private boolean changed;
+    private int generation;
+
+    private ReviewIndex(Path file, FileTime modified) {
+        this.file = file;
+        this.modified = modified;
+    }
+
+    /**
+     * Reads an index file, skipping the lines that cannot be parsed
+     *
+     * @param file the index file
+     * @return the index, empty if the file does not exist or cannot be read
+     */
+    static ReviewIndex read(Path file) {
+        if (Files.notExists(file)) {
+            return new ReviewIndex(file, null);
+        }
+        try {
+            ReviewIndex index = new ReviewIndex(file, Files.getLastModifiedTime(file));
+            CsvParser csv = CsvParser.open(file);
+            while (csv.nextLine()) {
+                try {
+                    int id = csv.nextInt();
+                    long sum = Long.parseLong(csv.nextField());
+                    int count = csv.nextInt();
+                    int journaled = csv.nextInt();
+                    // lines written before the journal had generations end with the journaled count
+                    String generation = csv.nextField();
+                    Entry entry = new Entry(id, sum, count, journaled,
+                            generation.isEmpty() ? 0 : Integer.parseInt(generation));
+                    index.entries.put(entry.id, entry);
+                } catch (ProductManagerException | NumberFormatException ex) {
+                    logger.log(Level.WARNING, "Error parsing review index " + ex.getMessage());
+                }
+            }
+            return index;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error reading review index " + ex.getMessage());
+            return new ReviewIndex(file, null);
+        }
+    }
+
+    /**
+     * Finds the entry of a product that is at least as recent as its reviews
+     * file
+     *
+     * @param id the product id
+     * @param reviewsFile the reviews file of the product
+     * @return the entry, or {@code null} if there is none or the reviews file
+     * changed after the index was written
+     */
+    Entry getCurrent(int id, Path reviewsFile) {
+        Entry entry = get(id);
+        if (entry == null || modified == null) {
+            return null;
+        }
+        try {
+            if (Files.notExists(reviewsFile)) {
+                return (entry.count == 0) ? entry : null;
+            }
+            return Files.getLastModifiedTime(reviewsFile).compareTo(modified) <= 0 ? entry : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param id the product id
+     * @return the number of reviews of the current journal generation the
+     * reviews file of the product already contains
+     */
+    int getJournaled(int id) {
+        try {
+            lock.lock();
+            Entry entry = entries.get(id);
+            return (entry == null || entry.generation != generation) ? 0 : entry.journaled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the journal generation that the journaled counts from now on
+     * refer to
+     *
+     * @param generation the current generation of the journal
+     */
+    void setGeneration(int generation) {
+        try {
+            lock.lock();
+            this.generation = generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the entry of a product in memory, to be saved by the next
+     * {@link #rewrite()}
+     */
+    void update(int id, long sum, int count, int journaled) {
+        try {
+            lock.lock();
+            entries.put(id, new Entry(id, sum, count, journaled, generation));
+            changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the entry of a product after its reviews file was written
+     *
+     * @throws IOException if the index cannot be written
+     */
+    void append(int id, long sum, int count, int journaled) throws IOException {
+        try {
+            lock.lock();
+            Entry entry = new Entry(id, sum, count, journaled, generation);
+            entries.put(id, entry);
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(entry.line());
+            }
+            if (++appended > Math.max(entries.size(), MIN_APPENDED_LINES)) {
+                changed = true;
+                rewrite();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the index with one line per product, if entries were updated
+     * since it was read or last rewritten
+     *
+     * @throws IOException if the index cannot be written
+     */
+    void rewrite() throws IOException {
+        try {
+            lock.lock();
+            if (!changed) {
+                return;
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Iterator<Entry> i = entries.values(); i.hasNext();) {
+                    out.write(i.next().line());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            appended = 0;
+            changed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry get(int id) {
+        try {
+            lock.lock();
+            return entries.get(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * What the reviews file of one product holds
+     */
+    static final class Entry {
+
+        private final int id;
+        private final long sum;
+        private final int count;
+        private final int journaled;
+        private final int generation;
+
+        private Entry(int id, long sum, int count, int journaled, int generation) {
+            this.id = id;
+            this.sum = sum;
+            this.count = count;
+            this.journaled = journaled;
+            this.generation = generation;
+        }
+
+        long getSum() {
+            return sum;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        int getJournaled() {
+            return journaled;
+        }
+
+        private String line() {
+            return id + "," + sum + "," + count + "," + journaled + "," + generation + System.lineSeparator();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * {@code ReviewJournal} is an append only log of the reviews added since the
+ * catalogue was loaded from the data files
+ * <br>
+ * Reviews are appended by a single writer thread that collects the pending
+ * records into batches and forces each batch to disk once, waiting at least
+ * the sync interval between two forces so that concurrent reviews share a
+ * commit
+ * <br>
+ * Each record is prefixed by its length and CRC32 checksum, and holds the
+ * product id, the rating and the UTF-8 comments. The rating byte has its high
+ * bit set for a review without comments
+ * <br>
+ * A record without a rating marks a product whose reviews file was reloaded,
+ * which replaced the reviews journaled for it before
+ * <br>
+ * A checkpoint starts a new generation of the journal once the catalogue
+ * holds every review journaled so far elsewhere: the journal is cut back to
+ * a single record with the number of the generation, which a snapshot of the
+ * catalogue refers to
+ * <br>
+ * Once a batch cannot be written the journal fails the reviews still queued
+ * and refuses any further review, since the reviews were already applied to
+ * the catalogue
+ *
+ * @author richa
+ */
+final class ReviewJournal {
+
+    /**
+     * Receives the reviews read back from the journal
+     */
+    @FunctionalInterface
+    interface Replay {
+
+        void apply(int productId, Rating rating, String comments);
+
+        default void reloaded(int productId) {
+        }
+    }
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int NO_COMMENTS = 0x80;
+    private static final int RELOADED = 0x7F;
+    private static final int GENERATION = 0x7E;
+    private static final Logger logger = Logger.getLogger(ReviewJournal.class.getName());
+
+    private final FileChannel channel;
+    private final long syncIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private List<Append> queue = new ArrayList<>();
+    private boolean closed;
+    // the error of the batch that could not be written, after which nothing is appended
+    private IOException failure;
+    // the end of the last batch forced to disk, where a failed batch is cut off
+    private long committedSize;
+    // the generation started by the last checkpoint, 0 before the first one
+    private int generation;
+    private final Thread writer;
+
+    ReviewJournal(Path file, long syncIntervalMillis) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        generation = readGeneration();
+        writer = new Thread(this::writeBatches, "review-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads all the complete records of the journal, in the order they were
+     * appended, and cuts off a record left incomplete by a crash
+     *
+     * @param replay receives each journaled review and reload
+     * @return the number of reviews replayed
+     * @throws IOException if the journal cannot be read
+     */
+    long replay(Replay replay) throws IOException {
+        long count = 0;
+        long valid = 0;
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                // a length beyond the end of the file is a damaged header, not a record to allocate
+                if (length < 5 || length > channel.size() - valid - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                int productId = record.getInt();
+                int rating = record.get() & 0xFF;
+                valid += RECORD_HEADER_SIZE + length;
+                if (rating == GENERATION) {
+                    continue;
+                }
+                if (rating == RELOADED) {
+                    replay.reloaded(productId);
+                    continue;
+                }
+                replay.apply(productId, Rateable.convert(rating & ~NO_COMMENTS), ((rating & NO_COMMENTS) != 0) ? null
+                        : new String(payload, record.position(), record.remaining(), StandardCharsets.UTF_8));
+                count++;
+            }
+        } catch (EOFException ex) {
+            // the journal ends with a complete record or a torn one
+        }
+        if (valid < channel.size()) {
+            logger.log(Level.WARNING, "Discarding " + (channel.size() - valid) + " bytes of incomplete journal records");
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        committedSize = valid;
+        return count;
+    }
+
+    // the generation in the first record of the journal, if it holds one
+    private int readGeneration() throws IOException {
+        ByteBuffer first = ByteBuffer.allocate(RECORD_HEADER_SIZE + Integer.BYTES + 1);
+        while (first.hasRemaining() && channel.read(first, first.position()) >= 0) {
+        }
+        if (first.hasRemaining() || first.getInt(0) < 5 || (first.get(first.limit() - 1) & 0xFF) != GENERATION) {
+            return 0;
+        }
+        return first.getInt(RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Encodes a review as a journal record, before the review is applied so
+     * that a review that cannot be journaled is not applied either
+     *
+     * @param productId the id of the reviewed product
+     * @param rating the review rating
+     * @param comments the review comments, which may be {@code null}
+     * @return the record, to be passed to {@link #append(ByteBuffer)}
+     */
+    static ByteBuffer record(int productId, Rating rating, String comments) {
+        return record(productId, rating.ordinal() | ((comments == null) ? NO_COMMENTS : 0),
+                (comments == null) ? new byte[0] : comments.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes the reload of the reviews file of a product, whose reviews
+     * replace those journaled for the product so far
+     *
+     * @param productId the id of the reloaded product
+     * @return the record, to be passed to {@link #append(ByteBuffer)}
+     */
+    static ByteBuffer reloadRecord(int productId) {
+        return record(productId, RELOADED, new byte[0]);
+    }
+
+    private static ByteBuffer record(int productId, int rating, byte[] text) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + Integer.BYTES + 1 + text.length);
+        record.position(RECORD_HEADER_SIZE);
+        record.putInt(productId).put((byte) rating).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, record.position() - RECORD_HEADER_SIZE);
+        record.putInt(0, record.position() - RECORD_HEADER_SIZE)
+                .putInt(Integer.BYTES, (int) crc.getValue())
+                .flip();
+        return record;
+    }
+
+    /**
+     * Queues a review record to be written with the next batch
+     *
+     * @param record the record of the review
+     * @return a future completed once the review is forced to disk
+     */
+    CompletableFuture<Void> append(ByteBuffer record) {
+        return enqueue(new Append(record, false));
+    }
+
+    /**
+     * Starts a new generation once the records queued so far are written,
+     * discarding them and the records written before, which the catalogue
+     * has to hold elsewhere by then
+     *
+     * @param generation the number of the new generation
+     * @return a future completed once the journal holds only the new
+     * generation on disk
+     */
+    CompletableFuture<Void> checkpoint(int generation) {
+        return enqueue(new Append(record(generation, GENERATION, new byte[0]), true));
+    }
+
+    /**
+     * @return the generation started by the last checkpoint, 0 if the
+     * journal was never checkpointed
+     */
+    int getGeneration() {
+        try {
+            lock.lock();
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Append append) {
+        try {
+            lock.lock();
+            if (failure != null) {
+                append.committed.completeExceptionally(failure);
+            } else if (closed) {
+                append.committed.completeExceptionally(new IOException("Review journal is closed"));
+            } else {
+                queue.add(append);
+                pending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return append.committed;
+    }
+
+    /**
+     * Tells whether a batch could not be written, in which case the reviews
+     * applied since the last forced batch are not durable
+     *
+     * @return the error of the failed batch, or {@code null}
+     */
+    IOException failure() {
+        try {
+            lock.lock();
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the reviews still queued and closes the journal file
+     */
+    void close() {
+        try {
+            lock.lock();
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+            channel.close();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error closing review journal " + ex.getMessage(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatches() {
+        while (true) {
+            List<Append> batch;
+            try {
+                lock.lock();
+                while (queue.isEmpty() && !closed) {
+                    pending.await();
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = queue;
+                queue = new ArrayList<>();
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            long start = System.nanoTime();
+            try {
+                // the records before the last checkpoint of the batch are discarded with the journal
+                int from = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.get(i).checkpoint) {
+                        from = i;
+                    }
+                }
+                Append checkpoint = batch.get(from).checkpoint ? batch.get(from) : null;
+                if (checkpoint != null) {
+                    channel.truncate(0);
+                    channel.position(0);
+                    committedSize = 0;
+                }
+                ByteBuffer[] records = batch.subList(from, batch.size()).stream()
+                        .map(append -> append.record)
+                        .toArray(ByteBuffer[]::new);
+                while (records[records.length - 1].hasRemaining()) {
+                    channel.write(records);
+                }
+                channel.force(false);
+                committedSize = channel.position();
+                if (checkpoint != null) {
+                    startGeneration(checkpoint.record.getInt(RECORD_HEADER_SIZE));
+                }
+                batch.forEach(append -> append.committed.complete(null));
+            } catch (IOException ex) {
+                fail(batch, ex);
+            } catch (RuntimeException ex) {
+                // the writer thread stays alive, or the later appends would never complete
+                fail(batch, new IOException(ex));
+            }
+            // reviews queued while waiting are committed together with the next force
+            long wait = syncIntervalNanos - (System.nanoTime() - start);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private void startGeneration(int next) {
+        try {
+            lock.lock();
+            generation = next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(List<Append> batch, IOException ex) {
+        logger.log(Level.SEVERE, "Error writing review journal " + ex.getMessage(), ex);
+        List<Append> queued;
+        try {
+            lock.lock();
+            failure = ex;
+            queued = queue;
+            queue = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        batch.forEach(append -> append.committed.completeExceptionally(ex));
+        queued.forEach(append -> append.committed.completeExceptionally(ex));
+        discardFailedBatch();
+    }
+
+    // a partly written batch would end the replay before the batches committed after it
+    private void discardFailedBatch() {
+        try {
+            channel.truncate(committedSize);
+            channel.position(committedSize);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error discarding failed review journal batch " + ex.getMessage(), ex);
+        }
+    }
+
+    private static final class Append {
+
+        private final ByteBuffer record;
+        private final boolean checkpoint;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        private Append(ByteBuffer record, boolean checkpoint) {
+            this.record = record;
+            this.checkpoint = checkpoint;
+        }
+    }
+}
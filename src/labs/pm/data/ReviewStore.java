@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.List;
+
+/**
+ * {@code ReviewStore} holds the reviews of the products of the catalogue
+ * <br>
+ * Reviews are added and read under the lock stripe of the product, while the
+ * reviews of a product are replaced and the store is cleared under the write
+ * lock of the {@link ProductManager}, which holds every lock stripe with it,
+ * so a store only has to cope with concurrent access to different products
+ * and with the reviews prefetched before a lock stripe is taken
+ *
+ * @author richa
+ */
+interface ReviewStore {
+
+    /**
+     * Adds a review to a product
+     *
+     * @param id the product id
+     * @param rating the rating of the review
+     * @param comments the comments of the review
+     */
+    void add(int id, Rating rating, String comments);
+
+    /**
+     * Adds a number of reviews to a product
+     *
+     * @param id the product id
+     * @param reviews the reviews in the order they were added
+     */
+    void addAll(int id, List<Review> reviews);
+
+    /**
+     * Replaces all the reviews of a product
+     *
+     * @param id the product id
+     * @param reviews the new reviews
+     * @return the number of reviews replaced
+     */
+    int replace(int id, List<Review> reviews);
+
+    /**
+     * Reads the reviews of a product ahead of a review or a report, before
+     * its lock stripe is taken, for stores that do not keep every review in
+     * memory
+     *
+     * @param id the product id
+     */
+    default void prefetch(int id) {
+    }
+
+    /**
+     * Reads the reviews of a product
+     *
+     * @param id the product id
+     * @return a new list of the reviews in the order they were added
+     */
+    List<Review> get(int id);
+
+    /**
+     * @return the number of reviews of all the products
+     */
+    long size();
+
+    void clear();
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * {@code StripedWriteLock} takes the write lock of a catalogue together with
+ * all its lock stripes, in the order of the stripes
+ * <br>
+ * Reviews and reports only take the stripe of their product, so a writer
+ * that changes the structure of the catalogue excludes them by holding every
+ * stripe, and the many operations on single products do not share a lock
+ *
+ * @author richa
+ */
+final class StripedWriteLock implements Lock {
+
+    private final Lock lock;
+    private final Lock[] stripes;
+
+    /**
+     * @param lock the write lock
+     * @param stripes the lock stripes of the products
+     */
+    StripedWriteLock(Lock lock, Lock[] stripes) {
+        this.lock = lock;
+        this.stripes = stripes;
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+        for (Lock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        lock.lockInterruptibly();
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stripes[locked].lockInterruptibly();
+            }
+        } catch (InterruptedException ex) {
+            release(locked);
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (!stripes[i].tryLock()) {
+                release(i);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if (!lock.tryLock(time, unit)) {
+            return false;
+        }
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                if (!stripes[locked].tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    release(locked);
+                    return false;
+                }
+            }
+        } catch (InterruptedException ex) {
+            release(locked);
+            throw ex;
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        release(stripes.length);
+    }
+
+    /**
+     * The write lock of a {@link java.util.concurrent.locks.StampedLock} has
+     * no conditions either
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+    // releases the first stripes, in reverse order, and then the write lock
+    private void release(int locked) {
+        for (int i = locked - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+        lock.unlock();
+    }
+}
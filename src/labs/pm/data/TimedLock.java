@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * {@code TimedLock} records how long threads wait for a lock and how long they
+ * hold it
+ * <br>
+ * A lock is timed from the time it is requested until it is granted and from
+ * then until it is released. No state is kept per thread, since a virtual
+ * thread per task would allocate it for every task: an exclusive lock keeps
+ * the time it was granted in a field only its owner reads, and a shared lock
+ * is taken with {@link #lockShared()}, whose caller passes the time it was
+ * granted back to {@link #unlockShared(long)}
+ * <br>
+ * The locks timed are not reentrant
+ *
+ * @author richa
+ */
+final class TimedLock implements Lock {
+
+    private final Lock lock;
+    private final LatencyHistogram waits;
+    private final LatencyHistogram holds;
+    private final boolean shared;
+    // the time an exclusive lock was granted, guarded by the lock
+    private long granted;
+
+    /**
+     * @param lock the lock to time
+     * @param waits records the waits for the lock
+     * @param holds records the holds of the lock
+     * @param shared whether the lock is held by several threads at once, and
+     * is taken with {@link #lockShared()}
+     */
+    TimedLock(Lock lock, LatencyHistogram waits, LatencyHistogram holds, boolean shared) {
+        this.lock = lock;
+        this.waits = waits;
+        this.holds = holds;
+        this.shared = shared;
+    }
+
+    /**
+     * Takes a shared lock
+     *
+     * @return the time the lock was granted, to be passed to
+     * {@link #unlockShared(long)}
+     */
+    long lockShared() {
+        long start = System.nanoTime();
+        lock.lock();
+        long now = System.nanoTime();
+        waits.record(now - start);
+        return now;
+    }
+
+    /**
+     * Releases a shared lock
+     *
+     * @param granted the time returned by {@link #lockShared()}
+     */
+    void unlockShared(long granted) {
+        holds.record(System.nanoTime() - granted);
+        lock.unlock();
+    }
+
+    @Override
+    public void lock() {
+        checkExclusive();
+        long start = System.nanoTime();
+        lock.lock();
+        acquired(start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        checkExclusive();
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        acquired(start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        checkExclusive();
+        long start = System.nanoTime();
+        if (lock.tryLock()) {
+            acquired(start);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        checkExclusive();
+        long start = System.nanoTime();
+        if (lock.tryLock(time, unit)) {
+            acquired(start);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void unlock() {
+        checkExclusive();
+        holds.record(System.nanoTime() - granted);
+        lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return lock.newCondition();
+    }
+
+    private void acquired(long start) {
+        granted = System.nanoTime();
+        waits.record(granted - start);
+    }
+
+    private void checkExclusive() {
+        if (shared) {
+            throw new IllegalStateException("A shared lock is taken with lockShared");
+        }
+    }
+}
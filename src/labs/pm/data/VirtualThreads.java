@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@code VirtualThreads} creates executors that start a virtual thread for
+ * each task, on Java runtimes that have virtual threads
+ * <br>
+ * The executor is looked up when the class is initialized, so the code still
+ * compiles and runs on runtimes without virtual threads, where callers fall
+ * back to platform threads
+ *
+ * @author richa
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle newExecutor = findExecutorFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return {@code true} if this runtime has virtual threads
+     */
+    public static boolean isSupported() {
+        return newExecutor != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task
+     *
+     * @return the executor
+     * @throws UnsupportedOperationException if this runtime has no virtual
+     * threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (newExecutor == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by Java "
+                    + Runtime.version().feature());
+        }
+        try {
+            return (ExecutorService) newExecutor.invoke();
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Error creating a virtual thread executor", ex);
+        }
+    }
+
+    private static MethodHandle findExecutorFactory() {
+        try {
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            // Java 19 and 20 only have virtual threads as a preview feature
+            ((ExecutorService) factory.invoke()).shutdown();
+            return factory;
+        } catch (Throwable ex) {
+            return null;
+        }
+    }
+}
@@ -17,4 +17,7 @@
 
 module ProductManagement {
     requires java.logging;
+    requires java.management;
+    // the metrics MXBean is read reflectively by the platform MBean server
+    exports labs.pm.data to java.management;
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a {@link CatalogueSnapshot} reads back what was written and
+ * rejects a damaged file
+ *
+ * @author richa
+ */
+public class CatalogueSnapshotTest {
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("catalogue", ".snapshot");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Product tea = new Drink(101, "Tea", new BigDecimal("1.99"), Rating.FOUR_STAR);
+        Product cake = new Food(103, "Cake", new BigDecimal("3.990"), Rating.FIVE_STAR, LocalDate.of(2022, 7, 7));
+        Product cookie = new Food(104, "Galleta de jengibre", new BigDecimal("-0.5"), Rating.NOT_RATED,
+                LocalDate.of(2023, 1, 31));
+        List<Review> teaReviews = List.of(new Review(Rating.FOUR_STAR, "Nice hot cup of tea"),
+                new Review(Rating.TWO_STAR, null), new Review(Rating.THREE_STAR, ""));
+        // more reviews than a block holds
+        List<Review> cakeReviews = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            cakeReviews.add(new Review(Rating.FIVE_STAR, "Très bon gâteau, numéro " + i));
+        }
+        Map<Integer, List<Review>> reviews = Map.of(101, teaReviews, 103, cakeReviews, 104, List.of());
+        CatalogueSnapshot.write(file, List.of(tea, cake, cookie), 3, 5003, reviews::get, 7);
+
+        assertTrue(CatalogueSnapshot.isSnapshot(file));
+        assertEquals(7, CatalogueSnapshot.journalGeneration(file));
+        Map<Product, List<Review>> products = read();
+        assertEquals(3, products.size());
+        for (Product product : List.of(tea, cake, cookie)) {
+            Product copy = products.keySet().stream().filter(product::equals).findFirst().orElseThrow();
+            assertEquals(product.getClass(), copy.getClass());
+            assertEquals(product.getName(), copy.getName());
+            assertEquals(product.getPrice(), copy.getPrice());
+            assertEquals(product.getRating(), copy.getRating());
+            if (product instanceof Food) {
+                assertEquals(product.getBestBefore(), copy.getBestBefore());
+            }
+            assertReviews(reviews.get(product.getId()), products.get(copy));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptBlock() throws IOException {
+        Product tea = new Drink(101, "Tea", new BigDecimal("1.99"), Rating.FOUR_STAR);
+        CatalogueSnapshot.write(file, List.of(tea), 1, 1, id -> List.of(new Review(Rating.FOUR_STAR, "Fine tea")), 0);
+        // flips a byte of the review comments, just before the two empty blocks that end the file
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = channel.size() - 20;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0x20)).rewind();
+            channel.write(b, position);
+        }
+        IOException ex = assertThrows(IOException.class, this::read);
+        assertEquals("Snapshot block 0 is corrupted", ex.getMessage());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Files.writeString(file, "D,101,Tea,1.99,4\n");
+        assertEquals(false, CatalogueSnapshot.isSnapshot(file));
+        assertThrows(IOException.class, this::read);
+    }
+
+    private Map<Product, List<Review>> read() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return CatalogueSnapshot.read(channel);
+        }
+    }
+
+    private static void assertReviews(List<Review> expected, List<Review> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getRating(), actual.get(i).getRating());
+            assertEquals(expected.get(i).getComments(), actual.get(i).getComments());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Tests how {@link CsvParser} reads decimal numbers and reports the ones it
+ * cannot read
+ *
+ * @author richa
+ */
+public class CsvParserTest {
+
+    @Test
+    public void readsDecimals() throws ProductManagerException {
+        CsvParser csv = parser("1.99,-3.50,+7,0.000\n");
+        assertEquals(new BigDecimal("1.99"), csv.nextDecimal());
+        assertEquals(new BigDecimal("-3.50"), csv.nextDecimal());
+        assertEquals(new BigDecimal("7"), csv.nextDecimal());
+        assertEquals(new BigDecimal("0.000"), csv.nextDecimal());
+    }
+
+    @Test
+    public void readsOverlongDecimals() throws ProductManagerException {
+        CsvParser csv = parser("D,12345678901234567890.25,4\n");
+        assertEquals('D', csv.nextChar());
+        assertEquals(new BigDecimal("12345678901234567890.25"), csv.nextDecimal());
+        assertEquals(4, csv.nextInt());
+    }
+
+    @Test
+    public void reportsMalformedDecimals() {
+        assertError("prices.csv:1:4: expected a decimal number", "1.2.3\n");
+        assertError("prices.csv:2:2: expected a decimal number", "1.00\n4x\n");
+        assertError("prices.csv:1:1: expected a decimal number", "-\n");
+        assertError("prices.csv:1:1: expected a decimal number", ",1\n");
+    }
+
+    @Test
+    public void reportsOverlongMalformedDecimals() {
+        assertError("prices.csv:1:1: expected a decimal number", "1234567890123456789.1.2\n");
+        assertError("prices.csv:1:1: expected a decimal number", "12345678901234567890x\n");
+    }
+
+    private static CsvParser parser(String text) {
+        CsvParser csv = new CsvParser("prices.csv", ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        csv.nextLine();
+        return csv;
+    }
+
+    private static void assertError(String message, String text) {
+        CsvParser csv = parser(text);
+        ProductManagerException ex = assertThrows(ProductManagerException.class, () -> {
+            while (true) {
+                csv.nextDecimal();
+                if (!csv.nextLine()) {
+                    break;
+                }
+            }
+        });
+        assertEquals(message, ex.getMessage());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2022 richa
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Tests how {@link ReviewJournal} recovers the reviews it committed after a
+ * crash or a failed batch
+ *
+ * @author richa
+ */
+public class ReviewJournalTest {
+
+    private Path folder;
+    private Path file;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("journal");
+        file = folder.resolve("reviews.journal");
+    }
+
+    @After
+    public void deleteFolder() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void replayCutsOffTornTail() throws IOException {
+        ReviewJournal journal = open(0);
+        journal.append(ReviewJournal.record(101, Rating.FOUR_STAR, "Nice hot cup of tea")).join();
+        journal.append(ReviewJournal.record(101, Rating.TWO_STAR, null)).join();
+        journal.append(ReviewJournal.record(103, Rating.FIVE_STAR, "Très bien")).join();
+        journal.close();
+        long committed = Files.size(file);
+        // a crash in the middle of a record leaves only its first bytes
+        ByteBuffer torn = ReviewJournal.record(104, Rating.ONE_STAR, "lost");
+        Files.write(file, Arrays.copyOf(torn.array(), torn.limit() - 3), StandardOpenOption.APPEND);
+
+        journal = open(0);
+        assertEquals(List.of("101:FOUR_STAR:Nice hot cup of tea", "101:TWO_STAR:null", "103:FIVE_STAR:Très bien"),
+                replay(journal));
+        assertEquals(committed, Files.size(file));
+        // records appended after the recovery follow the committed ones
+        journal.append(ReviewJournal.record(105, Rating.THREE_STAR, "after")).join();
+        journal.close();
+
+        journal = open(0);
+        List<String> reviews = replay(journal);
+        assertEquals(4, reviews.size());
+        assertEquals("105:THREE_STAR:after", reviews.get(3));
+        journal.close();
+    }
+
+    @Test
+    public void replaySkipsFailedBatch() throws IOException {
+        // the sync interval keeps the writer away while the next batch is queued
+        ReviewJournal journal = open(500);
+        journal.append(ReviewJournal.record(101, Rating.FOUR_STAR, "committed")).join();
+        CompletableFuture<Void> sameBatch = journal.append(ReviewJournal.record(102, Rating.FIVE_STAR, "failed"));
+        // a record the writer cannot handle fails its batch as a write error does
+        CompletableFuture<Void> broken = journal.append(null);
+        assertThrows(CompletionException.class, broken::join);
+        assertThrows(CompletionException.class, sameBatch::join);
+        assertNotNull(journal.failure());
+        CompletableFuture<Void> refused = journal.append(ReviewJournal.record(103, Rating.ONE_STAR, "refused"));
+        assertThrows(CompletionException.class, refused::join);
+        journal.close();
+
+        journal = open(0);
+        assertEquals(List.of("101:FOUR_STAR:committed"), replay(journal));
+        journal.close();
+    }
+
+    @Test
+    public void checkpointStartsNewGeneration() throws IOException {
+        ReviewJournal journal = open(0);
+        journal.append(ReviewJournal.record(101, Rating.FOUR_STAR, "before")).join();
+        journal.checkpoint(1).join();
+        journal.append(ReviewJournal.record(102, Rating.THREE_STAR, "after")).join();
+        journal.close();
+
+        journal = open(0);
+        assertEquals(1, journal.getGeneration());
+        assertEquals(List.of("102:THREE_STAR:after"), replay(journal));
+        journal.close();
+    }
+
+    private ReviewJournal open(long syncIntervalMillis) throws IOException {
+        return new ReviewJournal(file, syncIntervalMillis);
+    }
+
+    private static List<String> replay(ReviewJournal journal) throws IOException {
+        List<String> reviews = new ArrayList<>();
+        journal.replay((id, rating, comments) -> reviews.add(id + ":" + rating + ":" + comments));
+        return reviews;
+    }
+}